@@ -97,6 +97,7 @@ public class AddWordButton extends View
   private void addWordToDictionary(String wordToAdd)
   {
     UserDictionary.Words.addWord(im, wordToAdd, 250, UserDictionary.Words.LOCALE_TYPE_ALL);
+    im.addUserWord(wordToAdd, 250);
     String message = String.format(getResources().getString(R.string.wordAdded), wordToAdd);
     Toast toast = Toast.makeText(im, message, Toast.LENGTH_SHORT);
     toast.setGravity(Gravity.CENTER_VERTICAL | Gravity.CENTER_HORIZONTAL, 0, 0);
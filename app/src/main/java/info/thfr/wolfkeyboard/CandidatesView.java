@@ -120,7 +120,7 @@ public class CandidatesView extends View
       for (index = 0; index < dividers.length && touchx > dividers[index]; index++)
         ;
       if (index < dividers.length && candidates[index] != null)
-        im.getTouchListener().selectCandidate(index, true);
+        im.getTouchListener().pickCandidate(index);
     }
   }
 }
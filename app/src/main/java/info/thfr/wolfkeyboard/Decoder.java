@@ -0,0 +1,201 @@
+package info.thfr.wolfkeyboard;
+
+/**
+ * Copyright 2019         Thomas Frohwein <11335318+rfht@users.noreply.github.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import android.os.*;
+
+import java.util.*;
+
+/**
+ * This class runs Dictionary.guessWord() on a background thread, so a slow decode never blocks touch handling
+ * or drawing.  Requests are processed one at a time, and their results are delivered on the main thread in the
+ * order they were made.
+ *
+ * A trace is user input, so it is always decoded.  Other requests (suggesting replacements for the word at the
+ * cursor) are only useful until something else happens, so every newer request cancels them.  While a trace
+ * is still being drawn, the start of it can also be matched in advance.  All methods must be called on the
+ * main thread.
+ */
+public class Decoder
+{
+  public interface Callback
+  {
+    void onWordGuessed(String guesses[]);
+  }
+
+  private final HandlerThread thread;
+  private final Handler handler;
+  private final Handler mainHandler;
+  private final ArrayList<Request> pending;
+
+  public Decoder()
+  {
+    thread = new HandlerThread("Decoder", android.os.Process.THREAD_PRIORITY_FOREGROUND);
+    thread.start();
+    handler = new Handler(thread.getLooper());
+    mainHandler = new Handler(Looper.getMainLooper());
+    pending = new ArrayList<Request>();
+  }
+
+  /**
+   * Decode a trace.  The callback is invoked on the main thread with the guesses, or with null if the
+   * dictionary is not available.
+   */
+  public void guessWord(Dictionary dictionary, TracePoint trace[], KeyboardView.ModifierMode shiftMode, int numGuesses, boolean cancelable, Callback callback)
+  {
+    guessWord(dictionary, new Trace(trace), null, shiftMode, numGuesses, cancelable, null, callback);
+  }
+
+  /**
+   * Decode a trace, reusing prefixes matched by matchPrefixes() if the trace still starts the same way.  The
+   * trace is read on the decoder thread, so it must not be modified until the callback has been invoked.  If
+   * previousWords is not null, the guesses are ranked by how likely they are to follow those words.
+   */
+  public void guessWord(Dictionary dictionary, Trace trace, String previousWords[], KeyboardView.ModifierMode shiftMode, int numGuesses, boolean cancelable, Dictionary.PrefixMatches matches, Callback callback)
+  {
+    cancel(false);
+    submit(new Request(dictionary, trace, previousWords, shiftMode, numGuesses, cancelable, matches, callback, null));
+  }
+
+  /**
+   * Start matching the first Dictionary.PREFIX_TRACE_LENGTH points of a trace that is still being drawn.
+   * The matches are filled in on the decoder thread, so they should only be passed to guessWord(), and not be
+   * changed until it has delivered its guesses.
+   */
+  public void matchPrefixes(Dictionary dictionary, Dictionary.PrefixMatches matches)
+  {
+    cancel(false);
+    submit(new Request(dictionary, null, null, null, 0, false, matches, null, null));
+  }
+
+  /**
+   * Run an action on the main thread once the results of all requests made so far have been delivered.
+   * If there are none, it is run immediately.
+   */
+  public void runAfterPending(Runnable action)
+  {
+    cancel(false);
+    if (!isBusy())
+      action.run();
+    else
+      submit(new Request(null, null, null, null, 0, false, null, null, action));
+  }
+
+  /**
+   * Get whether there are results that have not been delivered yet and cannot be canceled.
+   */
+  public boolean isBusy()
+  {
+    for (Request request : pending)
+      if (!request.cancelable && (request.callback != null || request.action != null))
+        return true;
+    return false;
+  }
+
+  /**
+   * Cancel requests that have not been delivered yet.  If all is false, only the ones that were made
+   * cancelable are canceled.
+   */
+  public void cancel(boolean all)
+  {
+    for (int i = pending.size()-1; i >= 0; i--)
+    {
+      Request request = pending.get(i);
+      if (all || request.cancelable)
+      {
+        request.canceled = true;
+        handler.removeCallbacks(request);
+        pending.remove(i);
+      }
+    }
+  }
+
+  public void quit()
+  {
+    cancel(true);
+    thread.quit();
+  }
+
+  private void submit(Request request)
+  {
+    pending.add(request);
+    handler.post(request);
+  }
+
+  class Request implements Runnable
+  {
+    final Dictionary dictionary;
+    final Trace trace;
+    final String previousWords[];
+    final KeyboardView.ModifierMode shiftMode;
+    final int numGuesses;
+    final boolean cancelable;
+    final Dictionary.PrefixMatches matches;
+    final Callback callback;
+    final Runnable action;
+    volatile boolean canceled;
+
+    Request(Dictionary dictionary, Trace trace, String previousWords[], KeyboardView.ModifierMode shiftMode, int numGuesses, boolean cancelable, Dictionary.PrefixMatches matches, Callback callback, Runnable action)
+    {
+      this.dictionary = dictionary;
+      this.trace = trace;
+      this.previousWords = previousWords;
+      this.shiftMode = shiftMode;
+      this.numGuesses = numGuesses;
+      this.cancelable = cancelable;
+      this.matches = matches;
+      this.callback = callback;
+      this.action = action;
+    }
+
+    public void run()
+    {
+      // This is called on the decoder thread.  Decode the trace, then pass the result to the main thread.
+
+      final String guesses[];
+      if (canceled || dictionary == null)
+        guesses = null;
+      else if (trace == null)
+      {
+        if (matches != null)
+          dictionary.matchPrefixes(matches);
+        guesses = null;
+      }
+      else
+        guesses = dictionary.guessWord(trace, previousWords, shiftMode, numGuesses, this, matches);
+      mainHandler.post(new Runnable()
+      {
+        public void run()
+        {
+          if (canceled)
+            return;
+          pending.remove(Request.this);
+          if (action != null)
+            action.run();
+          else if (callback != null)
+            callback.onWordGuessed(guesses);
+        }
+      });
+    }
+
+    boolean isCanceled()
+    {
+      return canceled;
+    }
+  }
+}
@@ -19,57 +19,76 @@ package info.thfr.wolfkeyboard;
  */
 
 import android.content.*;
-import android.database.*;
-import android.provider.*;
 import android.util.*;
 
 import java.io.*;
+import java.nio.*;
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
 
 public class Dictionary
 {
-  final char words[][];
-  final char wordTraces[][];
-  final short wordFrequency[];
-  final Prefix prefixes[];
-  final int shortWords[];
-  final char mediumPrefixes[][];
-  final int mediumPrefixIndex[];
-  final char longPrefixes[][];
-  final int longPrefixIndex[];
-  final HashMap<Integer, Integer> replacements = new HashMap<Integer, Integer>();
+  final int numWords;
+  final IntBuffer wordOffsets;
+  final CharBuffer wordChars;
+  final IntBuffer traceOffsets;
+  final ByteBuffer traceBytes;
+  final ByteBuffer wordFrequency;
+  final int numPrefixes;
+  final ByteBuffer prefixes;
+  final IntBuffer prefixStart;
+  final IntBuffer prefixEnd;
+  final IntBuffer shortWords;
+  final IntBuffer prefixKeyStart;
+  final IntBuffer shortWordBuckets;
+  final IntBuffer variantStart;
+  final IntBuffer variants;
+  final int traceHashSize;
+  final IntBuffer traceHash;
+  final int numCompletionRanges;
+  final IntBuffer completionStart;
+  final IntBuffer completionEnd;
+  final IntBuffer completions;
+  final LanguageModel languageModel;
+  final int numMediumPrefixes;
+  final ByteBuffer mediumPrefixes;
+  final IntBuffer mediumPrefixStart;
+  final IntBuffer mediumPrefixEnd;
+  final int numLongPrefixes;
+  final ByteBuffer longPrefixes;
+  final IntBuffer longPrefixStart;
+  final IntBuffer longPrefixEnd;
+  final IntBuffer keyMasks;
+  final int maxTraceLength;
+  final int dataSize;
+  final HashMap<Integer, Integer> replacements = DictionaryCompiler.createReplacements();
+  private volatile UserWords userWords = UserWords.EMPTY;
+  private volatile WordHistory wordHistory;
+  private volatile SearchStats lastSearchStats = new SearchStats();
 
   private static final float PREFIX_CUTOFF = 3.0f;
   private static final float MEDIUM_PREFIX_CUTOFF = 3.5f;
   private static final float LONG_PREFIX_CUTOFF = 5.0f;
   private static final float MISSING_TERMINAL_COST = 0.5f;
-  private static final float MISSING_VIA_LETTER = 1.0f;
-  private static final float VIA_DISTANCE_MULTIPLIER = 0.2f;
-  private static final float UNORDERED_VIA_COST = 0.5f;
+  static final float MISSING_VIA_LETTER = 1.0f;
+  static final float VIA_DISTANCE_MULTIPLIER = 0.2f;
+  static final float UNORDERED_VIA_COST = 0.5f;
+  private static final float BOUND_TOLERANCE = 0.001f;
 
-  private static final int SHORT_PREFIX_LENGTH = 5;
-  private static final int MEDIUM_PREFIX_LENGTH = 7;
-  private static final int LONG_PREFIX_LENGTH = 9;
+  private static final int SHORT_PREFIX_LENGTH = DictionaryCompiler.SHORT_PREFIX_LENGTH;
+  private static final int MEDIUM_PREFIX_LENGTH = DictionaryCompiler.MEDIUM_PREFIX_LENGTH;
+  private static final int LONG_PREFIX_LENGTH = DictionaryCompiler.LONG_PREFIX_LENGTH;
+  private static final int MAX_PREFIX_TRACE_LENGTH = (int) Math.ceil(LONG_PREFIX_LENGTH*1.25);
+  public static final int PREFIX_TRACE_LENGTH = (int) Math.ceil(SHORT_PREFIX_LENGTH*1.25);
+  private static final int SHORT_WORD_CHUNK = 256;
+  private static final int NUM_SHORT_WORD_BUCKETS = DictionaryCompiler.NUM_SHORT_WORD_BUCKETS;
+  private static final int NUM_COMPLETIONS = DictionaryCompiler.NUM_COMPLETIONS;
+  private static final int SEARCH_THREADS = Math.min(4, Runtime.getRuntime().availableProcessors());
+  private static final long PARALLEL_SEARCH_WORK = 50000;
+  private static final int NUM_EXPECTED_WORDS = 32;
 
-  private static final Comparator<char[]> traceComparator = new Comparator<char[]>()
-  {
-    public int compare(char[] a, char[] b)
-    {
-      int len = Math.min(a.length, b.length);
-      for (int i = 0; i < len; i++)
-      {
-        if (a[i] != b[i])
-          return (a[i] < b[i] ? -1 : 1);
-      }
-      if (a.length < b.length)
-        return -1;
-      if (a.length == b.length)
-        return 0;
-      return 1;
-    }
-  };
-
-  private static final Comparator<char[]> wordComparator = new Comparator<char[]>()
+  static final Comparator<char[]> wordComparator = new Comparator<char[]>()
   {
     public int compare(char[] word1, char[] word2)
     {
@@ -91,312 +110,927 @@ public class Dictionary
     }
   };
 
-  public Dictionary(Context context, String dictionary)
+  // Each thread that decodes traces keeps its own cache, so it can be reused from one trace to the next.
+
+  private static final ThreadLocal<ScoreCache> scoreCache = new ThreadLocal<ScoreCache>()
   {
-    // Load the dictionary.
+    protected ScoreCache initialValue()
+    {
+      return new ScoreCache();
+    }
+  };
 
-    ArrayList<SortedWord> wordList = new ArrayList<SortedWord>();
-    for (HashMap.Entry<Integer, String[]> entry : Flow.alternates.entrySet())
-      for (String c : entry.getValue())
-        if (c.length() == 1)
-          replacements.put(c.codePointAt(0), entry.getKey());
-    try
+  // Long searches are split between the decoding thread and the threads in this pool.  They start when they
+  // are first needed.
+
+  private static final ForkJoinPool searchPool = new ForkJoinPool(Math.max(1, SEARCH_THREADS-1), new ForkJoinPool.ForkJoinWorkerThreadFactory()
+  {
+    public ForkJoinWorkerThread newThread(ForkJoinPool pool)
     {
-      int id = R.raw.american;
-      if (dictionary.equals("british"))
-        id = R.raw.british;
-      else if (dictionary.equals("french"))
-        id = R.raw.french;
-      else if (dictionary.equals("german"))
-        id = R.raw.german;
-      else if (dictionary.equals("portuguese"))
-        id = R.raw.portuguese;
-      else if (dictionary.equals("spanish"))
-        id = R.raw.spanish;
-      BufferedInputStream in = new BufferedInputStream(context.getResources().openRawResource(id));
-      try
+      ForkJoinWorkerThread thread = new ForkJoinWorkerThread(pool)
       {
-        while (true)
+        protected void onStart()
         {
-          int length = in.read();
-          if (length == -1)
-            break;
-          char word[] = new char[length];
-          for (int i = 0; i < length; i++)
-            word[i] = (char) (256*in.read()+in.read());
-          wordList.add(new SortedWord(word, (short) (in.read()&255)));
+          super.onStart();
+          android.os.Process.setThreadPriority(android.os.Process.THREAD_PRIORITY_FOREGROUND);
         }
-      }
-      catch (EOFException ex)
-      {
-        // End of file reached
-      }
+      };
+      thread.setName("Search-"+thread.getPoolIndex());
+      return thread;
+    }
+  }, null, false);
+
+  public Dictionary(Context context, String dictionary)
+  {
+    this(load(context, dictionary), LanguageModel.open(context, dictionary));
+  }
+
+  /**
+   * Create a dictionary from compiled data, as returned by DictionaryCompiler.
+   */
+  Dictionary(ByteBuffer data, LanguageModel languageModel)
+  {
+    this.languageModel = languageModel;
+
+    // Create views of the sections.  These read directly from the (usually memory mapped) data.
+
+    dataSize = data.capacity()+languageModel.dataSize;
+    numWords = data.getInt(DictionaryCompiler.HEADER_NUM_WORDS);
+    numPrefixes = data.getInt(DictionaryCompiler.HEADER_NUM_PREFIXES);
+    int numShortWords = data.getInt(DictionaryCompiler.HEADER_NUM_SHORT_WORDS);
+    numMediumPrefixes = data.getInt(DictionaryCompiler.HEADER_NUM_MEDIUM_PREFIXES);
+    numLongPrefixes = data.getInt(DictionaryCompiler.HEADER_NUM_LONG_PREFIXES);
+    wordOffsets = section(data, DictionaryCompiler.SECTION_WORD_OFFSETS, 4*(numWords+1)).asIntBuffer();
+    traceOffsets = section(data, DictionaryCompiler.SECTION_TRACE_OFFSETS, 4*(numWords+1)).asIntBuffer();
+    wordChars = section(data, DictionaryCompiler.SECTION_WORD_CHARS, 2*wordOffsets.get(numWords)).asCharBuffer();
+    traceBytes = section(data, DictionaryCompiler.SECTION_TRACE_BYTES, traceOffsets.get(numWords));
+    wordFrequency = section(data, DictionaryCompiler.SECTION_FREQUENCY, numWords);
+    prefixes = section(data, DictionaryCompiler.SECTION_PREFIX_BYTES, SHORT_PREFIX_LENGTH*numPrefixes);
+    prefixStart = section(data, DictionaryCompiler.SECTION_PREFIX_START, 4*numPrefixes).asIntBuffer();
+    prefixEnd = section(data, DictionaryCompiler.SECTION_PREFIX_END, 4*numPrefixes).asIntBuffer();
+    shortWords = section(data, DictionaryCompiler.SECTION_SHORT_WORDS, 4*numShortWords).asIntBuffer();
+    mediumPrefixes = section(data, DictionaryCompiler.SECTION_MEDIUM_PREFIX_BYTES, MEDIUM_PREFIX_LENGTH*numMediumPrefixes);
+    mediumPrefixStart = section(data, DictionaryCompiler.SECTION_MEDIUM_PREFIX_START, 4*numMediumPrefixes).asIntBuffer();
+    mediumPrefixEnd = section(data, DictionaryCompiler.SECTION_MEDIUM_PREFIX_END, 4*numMediumPrefixes).asIntBuffer();
+    longPrefixes = section(data, DictionaryCompiler.SECTION_LONG_PREFIX_BYTES, LONG_PREFIX_LENGTH*numLongPrefixes);
+    longPrefixStart = section(data, DictionaryCompiler.SECTION_LONG_PREFIX_START, 4*numLongPrefixes).asIntBuffer();
+    longPrefixEnd = section(data, DictionaryCompiler.SECTION_LONG_PREFIX_END, 4*numLongPrefixes).asIntBuffer();
+    keyMasks = section(data, DictionaryCompiler.SECTION_KEY_MASKS, 4*numWords).asIntBuffer();
+    prefixKeyStart = section(data, DictionaryCompiler.SECTION_PREFIX_KEY_START, 4*28).asIntBuffer();
+    shortWordBuckets = section(data, DictionaryCompiler.SECTION_SHORT_WORD_BUCKETS, 4*(NUM_SHORT_WORD_BUCKETS+1)).asIntBuffer();
+    variantStart = section(data, DictionaryCompiler.SECTION_VARIANT_START, 4*(numWords+1)).asIntBuffer();
+    variants = section(data, DictionaryCompiler.SECTION_VARIANTS, 4*variantStart.get(numWords)).asIntBuffer();
+    traceHashSize = data.getInt(DictionaryCompiler.HEADER_TRACE_HASH_SIZE);
+    traceHash = section(data, DictionaryCompiler.SECTION_TRACE_HASH, 4*traceHashSize).asIntBuffer();
+    numCompletionRanges = data.getInt(DictionaryCompiler.HEADER_NUM_COMPLETION_RANGES);
+    completionStart = section(data, DictionaryCompiler.SECTION_COMPLETION_START, 4*numCompletionRanges).asIntBuffer();
+    completionEnd = section(data, DictionaryCompiler.SECTION_COMPLETION_END, 4*numCompletionRanges).asIntBuffer();
+    completions = section(data, DictionaryCompiler.SECTION_COMPLETIONS, 4*NUM_COMPLETIONS*numCompletionRanges).asIntBuffer();
+    maxTraceLength = Math.max(data.getInt(DictionaryCompiler.HEADER_MAX_TRACE_LENGTH), LONG_PREFIX_LENGTH);
+  }
+
+  /**
+   * Load the compiled dictionary, building it from the raw word list if necessary.
+   */
+  private static ByteBuffer load(Context context, String dictionary)
+  {
+    int id = R.raw.american;
+    if (dictionary.equals("british"))
+      id = R.raw.british;
+    else if (dictionary.equals("french"))
+      id = R.raw.french;
+    else if (dictionary.equals("german"))
+      id = R.raw.german;
+    else if (dictionary.equals("portuguese"))
+      id = R.raw.portuguese;
+    else if (dictionary.equals("spanish"))
+      id = R.raw.spanish;
+    ByteBuffer data;
+    try
+    {
+      data = DictionaryCompiler.open(context, dictionary, id, DictionaryCompiler.createReplacements());
     }
     catch (IOException ex)
     {
       Log.d("Flow", "Exception loading dictionary", ex);
-      words = new char[0][];
-      wordTraces = new char[0][];
-      wordFrequency = new short[0];
-      prefixes = new Prefix[0];
-      shortWords = new int[0];
-      mediumPrefixes = new char[0][];
-      mediumPrefixIndex = new int[0];
-      longPrefixes = new char[0][];
-      longPrefixIndex = new int[0];
-      return;
+      data = DictionaryCompiler.empty();
     }
+    return data;
+  }
+
+  /**
+   * Get how many words were pruned at each stage of the most recent search.
+   */
+  public SearchStats getLastSearchStats()
+  {
+    return lastSearchStats;
+  }
+
+  /**
+   * Set the words from the user dictionary to consider in addition to the main word list.
+   */
+  public void setUserWords(UserWords userWords)
+  {
+    this.userWords = userWords;
+  }
+
+  /**
+   * Set the counts of the words the user has entered, which raise the frequencies of the words they use most.
+   */
+  public void setWordHistory(WordHistory wordHistory)
+  {
+    this.wordHistory = wordHistory;
+  }
 
-    // Add words from the user dictionary.
+  private static ByteBuffer section(ByteBuffer data, int section, int size)
+  {
+    ByteBuffer view = data.duplicate();
+    int offset = data.getInt(DictionaryCompiler.HEADER_SECTIONS+4*section);
+    view.limit(offset+size);
+    view.position(offset);
+    return view.slice().order(ByteOrder.LITTLE_ENDIAN);
+  }
 
-    ArrayList<SortedWord> userWordList = new ArrayList<SortedWord>();
-    Cursor cursor = context.getContentResolver().query(UserDictionary.Words.CONTENT_URI, new String[] {UserDictionary.Words.WORD, UserDictionary.Words.FREQUENCY}, null, null, null);
-    if (cursor.moveToFirst())
+  private int getTrace(int index, char trace[])
+  {
+    int start = traceOffsets.get(index);
+    int length = traceOffsets.get(index+1)-start;
+    for (int i = 0; i < length; i++)
+      trace[i] = (char) traceBytes.get(start+i);
+    return length;
+  }
+
+  private static void getPrefix(ByteBuffer prefixes, int index, int length, char prefix[])
+  {
+    int start = index*length;
+    for (int i = 0; i < length; i++)
+      prefix[i] = (char) prefixes.get(start+i);
+  }
+
+  /**
+   * Find the first prefix range that ends after a word.  The range contains the word unless it starts after it.
+   */
+  private static int findFirstPrefixRange(IntBuffer end, int count, int word)
+  {
+    int start = 0;
+    while (start < count)
     {
-      do
-      {
-        String word = cursor.getString(0);
-        int frequency = cursor.getInt(1);
-        if (frequency < 0)
-          frequency = 0;
-        if (frequency > 255)
-          frequency = 255;
-        userWordList.add(new SortedWord(word.toCharArray(), (short) frequency));
-      } while (cursor.moveToNext());
-    }
-    cursor.close();
-
-    // Sort the words from the user dictionary, then merge them into the main word list (which is already sorted).
-
-    Collections.sort(userWordList);
-    int totalWords = wordList.size()+userWordList.size();
-    ArrayList<SortedWord> mergedWordList = new ArrayList<SortedWord>(totalWords);
-    int nextMainWord = 0, nextUserWord = 0;
-    for (int i = 0; i < totalWords; i++)
-    {
-      if (nextUserWord == userWordList.size())
-        mergedWordList.add(wordList.get(nextMainWord++));
-      else if (nextMainWord == wordList.size())
-        mergedWordList.add(userWordList.get(nextUserWord++));
-      else if (wordList.get(nextMainWord).compareTo(userWordList.get(nextUserWord)) == -1)
-        mergedWordList.add(wordList.get(nextMainWord++));
+      int mid = (start+count)>>>1;
+      if (end.get(mid) <= word)
+        start = mid+1;
       else
-        mergedWordList.add(userWordList.get(nextUserWord++));
-    }
-    wordList = null;
-    userWordList = null;
-
-    // Build the data structures.
-    
-    words = new char[mergedWordList.size()][];
-    wordTraces = new char[mergedWordList.size()][];
-    wordFrequency = new short[mergedWordList.size()];
-    for (int i = 0; i < words.length; i++)
-    {
-      char word[] = mergedWordList.get(i).word;
-      words[i] = word;
-      wordFrequency[i] = mergedWordList.get(i).frequency;
-      int length = word.length;
-      int j;
-      for (j = 0; j < length; j++)
+        count = mid;
+    }
+    return start;
+  }
+
+  /**
+   * Advance to the prefix range for a later word.  The ranges are sorted, so this only needs to move forward
+   * from the one found for the previous word.
+   */
+  private static int findPrefixRange(IntBuffer end, int count, int range, int word)
+  {
+    while (range < count && end.get(range) <= word)
+      range++;
+    return range;
+  }
+
+  /**
+   * Words that are identical to their traces are only stored as traces, and have no characters of their own.
+   */
+  private boolean isStoredAsTrace(int index)
+  {
+    return wordOffsets.get(index) == wordOffsets.get(index+1);
+  }
+
+  private char getWordChar(int index, int start, int i)
+  {
+    return (isStoredAsTrace(index) ? (char) traceBytes.get(start+i) : wordChars.get(start+i));
+  }
+
+  private int getWordStart(int index)
+  {
+    return (isStoredAsTrace(index) ? traceOffsets.get(index) : wordOffsets.get(index));
+  }
+
+  private int getWordLength(int index)
+  {
+    if (isStoredAsTrace(index))
+      return traceOffsets.get(index+1)-traceOffsets.get(index);
+    return wordOffsets.get(index+1)-wordOffsets.get(index);
+  }
+
+  /**
+   * Copy a word from the main dictionary into an array, and return its length.
+   */
+  private int getWord(int index, char word[])
+  {
+    int start = getWordStart(index);
+    int length = getWordLength(index);
+    for (int i = 0; i < length; i++)
+      word[i] = getWordChar(index, start, i);
+    return length;
+  }
+
+  private char[] getWord(int index, UserWords userWords)
+  {
+    if (index >= numWords)
+      return userWords.words[index-numWords].clone();
+    int start = getWordStart(index);
+    char word[] = new char[getWordLength(index)];
+    for (int i = 0; i < word.length; i++)
+      word[i] = getWordChar(index, start, i);
+    return word;
+  }
+
+  private int compareWord(int index, char prefix[])
+  {
+    int start = getWordStart(index);
+    int length = getWordLength(index);
+    int len = Math.min(length, prefix.length);
+    for (int i = 0; i < len; i++)
+    {
+      char c1 = Character.toLowerCase(getWordChar(index, start, i));
+      char c2 = Character.toLowerCase(prefix[i]);
+      if (c1 < c2)
+        return -1;
+      if (c2 < c1)
+        return 1;
+    }
+    if (length < prefix.length)
+      return -1;
+    if (prefix.length < length)
+      return 1;
+    return 0;
+  }
+
+  /**
+   * Get whether a word has the same trace as an earlier word, so it is only scored as part of that one.
+   */
+  private boolean isVariant(int index)
+  {
+    int start = variantStart.get(index);
+    return start < variantStart.get(index+1) && variants.get(start) < index;
+  }
+
+  /**
+   * Find the first word that has a trace, or -1 if there is none.
+   */
+  private int findTrace(char trace[])
+  {
+    int mask = traceHashSize-1;
+    for (int slot = DictionaryCompiler.hashTrace(trace, trace.length)&mask; ; slot = (slot+1)&mask)
+    {
+      int index = traceHash.get(slot);
+      if (index == -1)
+        return -1;
+      int start = traceOffsets.get(index);
+      int length = traceOffsets.get(index+1)-start;
+      if (length != trace.length)
+        continue;
+      int i;
+      for (i = 0; i < length && traceBytes.get(start+i) == (byte) trace[i]; i++)
+        ;
+      if (i == length)
+        return index;
+    }
+  }
+
+  /**
+   * Get the frequency of a word, ignoring case, or -1 if it is neither in the dictionary nor in the user
+   * dictionary.
+   */
+  public int getWordFrequency(String word)
+  {
+    UserWords userWords = this.userWords;
+    int index = findWord(word.toCharArray(), userWords);
+    return (index == -1 ? -1 : getFrequency(index, userWords));
+  }
+
+  /**
+   * Find a word, ignoring case.  If several words match, this returns the most frequent one.  Words from the
+   * user dictionary have indices starting from numWords.  Returns -1 if there is no match.
+   */
+  private int findWord(char chars[], UserWords userWords)
+  {
+    int index = -1;
+    int frequency = -1;
+
+    // Check the first word with the same trace and the other words with it.
+
+    int first = findTrace(DictionaryCompiler.createTrace(chars, replacements));
+    if (first > -1)
+    {
+      if (compareWord(first, chars) == 0)
       {
-        char c = word[j];
-        if (c != '\'' && !(c >= 'a' && c <= 'z'))
-          break;
+        index = first;
+        frequency = getFrequency(first, userWords);
       }
-      if (j != length)
-      {
-        if (word[length-1] == '.')
-          length--;
-        char trace[] = new char[length];
-        for (j = 0; j < length; j++)
+      for (int v = variantStart.get(first); v < variantStart.get(first+1); v++)
+        if (compareWord(variants.get(v), chars) == 0 && getFrequency(variants.get(v), userWords) > frequency)
         {
-          int c = Character.toLowerCase(word[j]);
-          if (c != '\'' && !(c >= 'a' && c <= 'z'))
+          index = variants.get(v);
+          frequency = getFrequency(index, userWords);
+        }
+    }
+    for (int u = userWords.findFirst(chars); u < userWords.size() && userWords.startsWithIgnoreCase(u, chars); u++)
+      if (userWords.words[u].length == chars.length && getFrequency(numWords+u, userWords) > frequency)
+      {
+        index = numWords+u;
+        frequency = getFrequency(index, userWords);
+      }
+    return index;
+  }
+
+  /**
+   * Get whether the dictionary or the user dictionary has a word with the same trace as this one, which means
+   * the same letters ignoring case and accents.
+   */
+  public boolean containsTrace(String word)
+  {
+    UserWords userWords = this.userWords;
+    char trace[] = DictionaryCompiler.createTrace(word.toCharArray(), replacements);
+    if (findTrace(trace) > -1)
+      return true;
+    int key = UserWords.keyIndex(trace);
+    for (int u = userWords.keyStart[key]; u < userWords.keyStart[key+1]; u++)
+      if (Arrays.equals(userWords.traces[userWords.keyOrder[u]], trace))
+        return true;
+    return false;
+  }
+
+  private int getFrequency(int index, UserWords userWords)
+  {
+    if (index >= numWords)
+      return userWords.frequency[index-numWords];
+    return wordFrequency.get(index)&255;
+  }
+
+  public String[] guessWord(TracePoint trace[], KeyboardView.ModifierMode shiftMode, int numGuesses)
+  {
+    return guessWord(new Trace(trace), shiftMode, numGuesses, null, null);
+  }
+
+  public String[] guessWord(TracePoint trace[], KeyboardView.ModifierMode shiftMode, int numGuesses, Decoder.Request request, PrefixMatches matches)
+  {
+    return guessWord(new Trace(trace), shiftMode, numGuesses, request, matches);
+  }
+
+  public String[] guessWord(Trace trace, KeyboardView.ModifierMode shiftMode, int numGuesses)
+  {
+    return guessWord(trace, shiftMode, numGuesses, null, null);
+  }
+
+  public String[] guessWord(Trace trace, KeyboardView.ModifierMode shiftMode, int numGuesses, Decoder.Request request, PrefixMatches matches)
+  {
+    return guessWord(trace, null, shiftMode, numGuesses, request, matches);
+  }
+
+  /**
+   * Guess the word for a trace.  If the request is canceled while this is running, it stops early and
+   * returns null.  If matches is not null and was computed from the same points this trace starts with,
+   * the short prefixes are taken from it instead of being scored again.  If previousWords is not null, it holds
+   * the two words before the trace, as returned by LanguageModel.getPreviousWords(), and the guesses that are
+   * likely to follow them are moved up.
+   */
+  public String[] guessWord(Trace trace, String previousWords[], KeyboardView.ModifierMode shiftMode, int numGuesses, Decoder.Request request, PrefixMatches matches)
+  {
+    UserWords userWords = this.userWords;
+    int numCandidates = numGuesses*2;
+    float sumWeights = 0.0f;
+    for (int i = 0; i < trace.size(); i++)
+      sumWeights += trace.getWeight(i);
+    int minLength = trace.size()/2;
+    int maxLength = (int) (trace.size()*1.26f)+3;
+    ScoreCache cache = scoreCache.get();
+    cache.reset(trace.size(), Math.max(maxLength, LONG_PREFIX_LENGTH));
+    TraceCosts costs = new TraceCosts(trace);
+    ArrayList<SortedPrefix> candidatePrefixes;
+    if (matches != null && matches.prefixes != null && matches.appliesTo(trace))
+      candidatePrefixes = matches.prefixes;
+    else
+      candidatePrefixes = findCandidatePrefixes(trace, costs, cache, request);
+    if (candidatePrefixes == null)
+      return null;
+
+    // Score the short words and the words that start with the candidate prefixes.  If there are enough of
+    // them that this would take longer than a frame, split the work between several threads.
+
+    Search search = new Search(trace, costs, candidatePrefixes, minLength, maxLength, numCandidates, sumWeights, request);
+    LanguageModel model = languageModel;
+    int previous2 = -1, previous = -1;
+    if (previousWords != null && model.numWords > 0)
+    {
+      previous2 = model.findWord(previousWords[0]);
+      previous = model.findWord(previousWords[1]);
+      search.scoreExpectedWords(findExpectedWords(model, previous2, previous), cache);
+    }
+    int numThreads = (SEARCH_THREADS > 1 && search.estimateWork() >= PARALLEL_SEARCH_WORK ? SEARCH_THREADS : 1);
+    if (!search.run(numThreads))
+      return null;
+    lastSearchStats = search.stats;
+    int bestWords[] = search.bestWords;
+    float bestScores[] = search.bestScores;
+
+    // Words from the user dictionary are few enough to score them all.  They are identified by indices
+    // starting from numWords.
+
+    for (int key = 0; key < 27; key++)
+    {
+      if (trace.getKeyDistance(0, key == 26 ? '\'' : 'a'+key) > 0.7f)
+        continue;
+      for (int u = userWords.keyStart[key]; u < userWords.keyStart[key+1]; u++)
+      {
+        int wordIndex = userWords.keyOrder[u];
+        char userTrace[] = userWords.traces[wordIndex];
+        if (userTrace.length < minLength || userTrace.length > maxLength)
+          continue;
+        float score = scoreWord(userTrace, userTrace.length, costs, bestScores[numCandidates-1], cache);
+        if (score >= bestScores[numCandidates-1])
+          continue;
+        for (int i = 0; i < numCandidates; i++)
+          if (score < bestScores[i])
           {
-            if (replacements.containsKey(c))
-              c = replacements.get(c);
-            if (c != '\'' && !(c >= 'a' && c <= 'z'))
-              c = '\'';
+            for (int j = numCandidates-1; j > i; j--)
+            {
+              bestWords[j] = bestWords[j-1];
+              bestScores[j] = bestScores[j-1];
+            }
+            bestWords[i] = numWords+wordIndex;
+            bestScores[i] = score;
+            break;
           }
-          trace[j] = (char) c;
-        }
-        wordTraces[i] = trace;
       }
-      else
-        wordTraces[i] = word;
     }
-    Prefix currentPrefix = null;
-    ArrayList<Prefix> prefixList = new ArrayList<Prefix>();
-    ArrayList<Integer> shortWordList = new ArrayList<Integer>();
-    for (int i = 0; i < wordTraces.length; i++)
+
+    // Only the first word with each trace was scored.  Add the other words with the same trace, with the same
+    // score, then rank them all by score, frequency, how often the user has entered them, and how likely they
+    // are to follow the previous words.
+
+    int numExpanded = numCandidates;
+    for (int i = 0; i < numCandidates; i++)
+      if (bestWords[i] > -1 && bestWords[i] < numWords)
+        numExpanded += variantStart.get(bestWords[i]+1)-variantStart.get(bestWords[i]);
+    int scoredWords[] = bestWords;
+    float scoredScores[] = bestScores;
+    bestWords = new int[numExpanded];
+    bestScores = new float[bestWords.length];
+    Arrays.fill(bestWords, -1);
+    int numBest = 0;
+    for (int i = 0; i < numCandidates && scoredWords[i] > -1; i++)
     {
-      char word[] = wordTraces[i];
-      if (word.length >= SHORT_PREFIX_LENGTH)
+      bestWords[numBest] = scoredWords[i];
+      bestScores[numBest++] = scoredScores[i];
+      if (scoredWords[i] < numWords)
+        for (int v = variantStart.get(scoredWords[i]); v < variantStart.get(scoredWords[i]+1); v++)
+        {
+          bestWords[numBest] = variants.get(v);
+          bestScores[numBest++] = scoredScores[i];
+        }
+    }
+    WordHistory history = wordHistory;
+    char word[] = new char[maxTraceLength+1];
+    float adjustedScores[] = new float[bestScores.length];
+    for (int i = 0; i < bestScores.length; i++)
+    {
+      int index = bestWords[i];
+      if (index > -1)
       {
-        if (currentPrefix == null || !currentPrefix.hasPrefix(word))
-          prefixList.add(currentPrefix = new Prefix(substring(word, SHORT_PREFIX_LENGTH), i));
-        currentPrefix.end++;
+        adjustedScores[i] = bestScores[i]-0.0025f*getFrequency(index, userWords);
+        if (previous > -1 || history != null)
+        {
+          char chars[] = (index < numWords ? word : userWords.words[index-numWords]);
+          int length = (index < numWords ? getWord(index, word) : chars.length);
+          if (previous > -1)
+            adjustedScores[i] -= 0.0025f*model.getBoost(previous2, previous, model.findWord(chars, length));
+          if (history != null)
+            adjustedScores[i] -= 0.0025f*history.getBoost(chars, length);
+        }
       }
       else
-        shortWordList.add(i);
-    }
-    prefixes = prefixList.toArray(new Prefix[prefixList.size()]);
-    shortWords = new int[shortWordList.size()];
-    for (int i = 0; i < shortWords.length; i++)
-      shortWords[i] = shortWordList.get(i);
-    ArrayList<char[]> mediumPrefixList = new ArrayList<char[]>();
-    mediumPrefixIndex = new int[wordTraces.length];
-    findPrefixes(MEDIUM_PREFIX_LENGTH, wordTraces, mediumPrefixList, mediumPrefixIndex);
-    mediumPrefixes = new char[mediumPrefixList.size()][];
-    for (int i = 0; i < mediumPrefixes.length; i++)
-      mediumPrefixes[i] = mediumPrefixList.get(i);
-    ArrayList<char[]> longPrefixList = new ArrayList<char[]>();
-    longPrefixIndex = new int[wordTraces.length];
-    findPrefixes(LONG_PREFIX_LENGTH, wordTraces, longPrefixList, longPrefixIndex);
-    longPrefixes = new char[longPrefixList.size()][];
-    for (int i = 0; i < longPrefixes.length; i++)
-      longPrefixes[i] = longPrefixList.get(i);
-  }
-
-  private static void findPrefixes(int size, char words[][], ArrayList<char[]> prefixes, int prefixIndex[])
-  {
-    char lastPrefix[] = null;
-    int numWords = words.length;
-    for (int i = 0; i < numWords; i++)
-    {
-      char word[] = words[i];
-      if (word.length >= size)
+        adjustedScores[i] = Float.MAX_VALUE;
+    }
+    for (int i = 1; i < bestWords.length; i++)
+      for (int j = i-1; j >= 0 && adjustedScores[j] > adjustedScores[j+1]; j--)
+      {
+        int swapWord = bestWords[j];
+        float swapScore = bestScores[j];
+        float swapAdjusted = adjustedScores[j];
+        bestWords[j] = bestWords[j+1];
+        bestScores[j] = bestScores[j+1];
+        adjustedScores[j] = adjustedScores[j+1];
+        bestWords[j+1] = swapWord;
+        bestScores[j+1] = swapScore;
+        adjustedScores[j+1] = swapAdjusted;
+      }
+    String choices[] = new String[numGuesses];
+    for (int i = 0; i < numGuesses; i++)
+      if (bestWords[i] != -1)
       {
-        if (lastPrefix == null || !startsWith(word, lastPrefix))
+        char choice[] = getWord(bestWords[i], userWords);
+        if (shiftMode == KeyboardView.ModifierMode.DOWN)
+          choice[0] = Character.toUpperCase(choice[0]);
+        else if (shiftMode == KeyboardView.ModifierMode.LOCKED)
         {
-          char prefix[] = substring(word, size);
-          if (i < numWords-1 && startsWith(words[i+1], prefix))
-          {
-            lastPrefix = prefix;
-            prefixes.add(prefix);
-          }
-          else
-            lastPrefix = null;
+          for (int j = 0; j < choice.length; j++)
+            choice[j] = Character.toUpperCase(choice[j]);
         }
+        choices[i] = new String(choice);
       }
-      else
-        lastPrefix = null;
-      prefixIndex[i] = (lastPrefix == null ? -1 : prefixes.size()-1);
+    return choices;
+  }
+
+  /**
+   * Find the words the language model expects to follow the previous words.  They are returned as the first word
+   * with each of their traces, since those are the words a search scores.
+   */
+  private int[] findExpectedWords(LanguageModel model, int previous2, int previous)
+  {
+    int successors[] = new int[NUM_EXPECTED_WORDS];
+    int count = model.findSuccessors(previous2, previous, successors);
+    int expected[] = new int[count];
+    int numExpected = 0;
+    for (int i = 0; i < count; i++)
+    {
+      int index = findTrace(DictionaryCompiler.createTrace(model.getWord(successors[i]).toCharArray(), replacements));
+      int j;
+      for (j = 0; j < numExpected && expected[j] != index; j++)
+        ;
+      if (index > -1 && j == numExpected)
+        expected[numExpected++] = index;
     }
+    return Arrays.copyOf(expected, numExpected);
   }
 
-  private static char[] substring(char word[], int length)
+  /**
+   * Find the words most likely to come after the previous words, as returned by LanguageModel.getPreviousWords(),
+   * spelled the way the dictionary spells them.  Words that are in neither the dictionary nor the user dictionary
+   * are left out.  Returns null if there are none.
+   */
+  public String[] predictNextWords(String previousWords[], int numPredictions)
   {
-    char s[] = new char[length];
-    for (int i = 0; i < length; i++)
-      s[i] = word[i];
-    return s;
+    UserWords userWords = this.userWords;
+    LanguageModel model = languageModel;
+    if (previousWords == null || model.numWords == 0)
+      return null;
+    int successors[] = new int[2*numPredictions];
+    int count = model.findSuccessors(model.findWord(previousWords[0]), model.findWord(previousWords[1]), successors);
+    String predictions[] = new String[numPredictions];
+    int numFound = 0;
+    for (int i = 0; i < count && numFound < numPredictions; i++)
+    {
+      int index = findWord(model.getWord(successors[i]).toCharArray(), userWords);
+      if (index > -1)
+        predictions[numFound++] = new String(getWord(index, userWords));
+    }
+    return (numFound == 0 ? null : predictions);
   }
 
-  private static boolean startsWith(char word[], char prefix[])
+  /**
+   * Match the start of a trace that is still being drawn against the short prefixes.  The result can be passed
+   * to guessWord() once the trace is complete.
+   */
+  public void matchPrefixes(PrefixMatches matches)
   {
-    int length = prefix.length;
-    if (word.length < length)
-      return false;
-    for (int i = 0; i < length; i++)
+    ScoreCache cache = scoreCache.get();
+    cache.reset(matches.start.size(), LONG_PREFIX_LENGTH);
+    matches.prefixes = findCandidatePrefixes(matches.start, new TraceCosts(matches.start), cache, null);
+  }
+
+  /**
+   * Find the short prefixes that could match the start of a trace, sorted by score.  This only looks at the
+   * first PREFIX_TRACE_LENGTH points.  Returns null if the request is canceled.
+   */
+  private ArrayList<SortedPrefix> findCandidatePrefixes(Trace trace, TraceCosts costs, ScoreCache cache, Decoder.Request request)
+  {
+    char word[] = new char[SHORT_PREFIX_LENGTH];
+    ArrayList<SortedPrefix> candidatePrefixes = new ArrayList<SortedPrefix>();
+    float prefixCutoff = PREFIX_CUTOFF;
+
+    // The prefixes are grouped by their first key, so only the groups for keys near the start of the trace
+    // need to be looked at.
+
+    for (int key = 0; key < 27; key++)
     {
-      if (word[i] != prefix[i])
-        return false;
+      if (trace.getKeyDistance(0, key == 26 ? '\'' : 'a'+key) > 0.7f)
+        continue;
+      int end = prefixKeyStart.get(key+1);
+      for (int p = prefixKeyStart.get(key); p < end; p++)
+      {
+        if (request != null && (p&1023) == 0 && request.isCanceled())
+          return null;
+        getPrefix(prefixes, p, SHORT_PREFIX_LENGTH, word);
+        float score = scorePrefix(word, SHORT_PREFIX_LENGTH, costs, prefixCutoff, cache);
+        if (score < prefixCutoff)
+        {
+          candidatePrefixes.add(new SortedPrefix(p, score));
+          if (score < prefixCutoff-2.0f)
+            prefixCutoff = score+2.0f;
+        }
+      }
     }
-    return true;
+    for (int i = candidatePrefixes.size()-1; i >= 0; i--)
+      if (candidatePrefixes.get(i).score > prefixCutoff)
+        candidatePrefixes.remove(i);
+    Collections.sort(candidatePrefixes);
+    return candidatePrefixes;
   }
 
-  private static boolean startsWithIgnoreCase(char word[], char prefix[])
+  /**
+   * This class scores the words in the dictionary against a trace and keeps the best ones.  The words are
+   * divided into chunks: first blocks of short words that start near the start of the trace and are long
+   * enough, then the words starting with each candidate prefix, in order of prefix score.  Every thread working
+   * on the search takes the next chunk whenever it finishes one, so the most promising words are scored first
+   * however many threads there are.  The cutoffs are shared and only ever lowered, so every thread prunes with
+   * the best scores found by any of them.
+   */
+  private class Search
   {
-    int length = prefix.length;
-    if (word.length < length)
-      return false;
-    for (int i = 0; i < length; i++)
+    final Trace trace;
+    final TraceCosts costs;
+    final ArrayList<SortedPrefix> candidatePrefixes;
+    final int minLength;
+    final int maxLength;
+    final int numCandidates;
+    final float sumWeights;
+    final Decoder.Request request;
+    final int shortChunkStart[];
+    final int shortChunkEnd[];
+    final int numShortChunks;
+    final int numShortWords;
+    final int numChunks;
+    final SearchStats skipped = new SearchStats();
+    final AtomicInteger nextChunk;
+    final AtomicInteger wordCutoff;
+    final AtomicInteger mediumPrefixCutoff;
+    final AtomicInteger longPrefixCutoff;
+    final SearchWorker expected;
+    volatile boolean canceled;
+    int bestWords[];
+    float bestScores[];
+    SearchStats stats;
+
+    Search(Trace trace, TraceCosts costs, ArrayList<SortedPrefix> candidatePrefixes, int minLength, int maxLength, int numCandidates, float sumWeights, Decoder.Request request)
+    {
+      this.trace = trace;
+      this.costs = costs;
+      this.candidatePrefixes = candidatePrefixes;
+      this.minLength = minLength;
+      this.maxLength = maxLength;
+      this.numCandidates = numCandidates;
+      this.sumWeights = sumWeights;
+      this.request = request;
+
+      // Divide the groups of short words that could match into chunks, and count the ones that are skipped.
+
+      int maxChunks = shortWords.limit()/SHORT_WORD_CHUNK+NUM_SHORT_WORD_BUCKETS;
+      shortChunkStart = new int[maxChunks];
+      shortChunkEnd = new int[maxChunks];
+      int chunks = 0, words = 0;
+      for (int key = 0; key < 27; key++)
+      {
+        boolean keyMatches = (trace.getKeyDistance(0, key == 26 ? '\'' : 'a'+key) <= 0.7f);
+        for (int length = 0; length < SHORT_PREFIX_LENGTH; length++)
+        {
+          int bucket = key*SHORT_PREFIX_LENGTH+length;
+          int start = shortWordBuckets.get(bucket);
+          int end = shortWordBuckets.get(bucket+1);
+          if (length < minLength)
+            skipped.wrongLength += end-start;
+          else if (!keyMatches)
+            skipped.firstKey += end-start;
+          else
+            for (int w = start; w < end; w += SHORT_WORD_CHUNK)
+            {
+              shortChunkStart[chunks] = w;
+              shortChunkEnd[chunks++] = Math.min(w+SHORT_WORD_CHUNK, end);
+              words += Math.min(SHORT_WORD_CHUNK, end-w);
+            }
+        }
+      }
+      numShortChunks = chunks;
+      numShortWords = words;
+      numChunks = numShortChunks+candidatePrefixes.size();
+      nextChunk = new AtomicInteger();
+      wordCutoff = new AtomicInteger(Float.floatToIntBits(sumWeights));
+      mediumPrefixCutoff = new AtomicInteger(Float.floatToIntBits(MEDIUM_PREFIX_CUTOFF));
+      longPrefixCutoff = new AtomicInteger(Float.floatToIntBits(LONG_PREFIX_CUTOFF));
+      expected = new SearchWorker(this);
+    }
+
+    /**
+     * Score the words that are expected to come next, before any chunks.  Once there are numCandidates of them,
+     * the worst of their scores becomes the cutoff, so the search prunes as if it had already found them.
+     */
+    void scoreExpectedWords(int words[], ScoreCache cache)
+    {
+      char word[] = expected.word;
+      for (int wordIndex : words)
+      {
+        int length = getTrace(wordIndex, word);
+        if (length < minLength || length > maxLength || trace.getKeyDistance(0, word[0]) > 0.7f)
+          continue;
+        expected.stats.expected++;
+        float cutoff = getCutoff(wordCutoff);
+        float score = scoreWord(word, length, costs, cutoff, cache);
+        if (score < cutoff)
+          expected.addWord(wordIndex, score, -1);
+      }
+      lowerCutoff(mediumPrefixCutoff, getCutoff(wordCutoff));
+      lowerCutoff(longPrefixCutoff, getCutoff(wordCutoff));
+    }
+
+    /**
+     * Estimate how long the search will take, as the number of words times the length of the trace.
+     */
+    long estimateWork()
     {
-      if (Character.toLowerCase(word[i]) != Character.toLowerCase(prefix[i]))
+      long numWords = numShortWords;
+      for (SortedPrefix prefix : candidatePrefixes)
+        numWords += prefixEnd.get(prefix.prefix)-prefixStart.get(prefix.prefix);
+      return numWords*trace.size();
+    }
+
+    /**
+     * Run the search on the calling thread and numThreads-1 threads from the pool, then merge the words found
+     * by each of them into bestWords and bestScores.  Returns false if the request was canceled.
+     */
+    boolean run(int numThreads)
+    {
+      SearchWorker workers[] = new SearchWorker[numThreads];
+      for (int i = 0; i < numThreads; i++)
+        workers[i] = new SearchWorker(this);
+      for (int i = 1; i < numThreads; i++)
+        searchPool.execute(workers[i]);
+      workers[0].invoke();
+      for (int i = 1; i < numThreads; i++)
+        workers[i].join();
+      if (canceled)
         return false;
+      stats = new SearchStats();
+      stats.add(skipped);
+      stats.add(expected.stats);
+      for (SearchWorker worker : workers)
+        stats.add(worker.stats);
+
+      // Words with equal scores are kept in the order the chunks they came from were taken, so the result is
+      // the same as if a single thread had scored every chunk in turn.  The expected words come first, and the
+      // threads may have found some of them again.
+
+      bestWords = new int[numCandidates];
+      bestScores = new float[numCandidates];
+      int bestChunks[] = new int[numCandidates];
+      Arrays.fill(bestWords, -1);
+      Arrays.fill(bestScores, sumWeights);
+      Arrays.fill(bestChunks, Integer.MAX_VALUE);
+      SearchWorker lists[] = new SearchWorker[numThreads+1];
+      lists[0] = expected;
+      System.arraycopy(workers, 0, lists, 1, numThreads);
+      for (SearchWorker worker : lists)
+        for (int w = 0; w < numCandidates && worker.bestWords[w] > -1; w++)
+        {
+          int k;
+          for (k = 0; k < numCandidates && bestWords[k] != worker.bestWords[w]; k++)
+            ;
+          if (k < numCandidates)
+            continue;
+          float score = worker.bestScores[w];
+          int chunk = worker.bestChunks[w];
+          for (int i = 0; i < numCandidates; i++)
+            if (score < bestScores[i] || (score == bestScores[i] && chunk < bestChunks[i]))
+            {
+              for (int j = numCandidates-1; j > i; j--)
+              {
+                bestWords[j] = bestWords[j-1];
+                bestScores[j] = bestScores[j-1];
+                bestChunks[j] = bestChunks[j-1];
+              }
+              bestWords[i] = worker.bestWords[w];
+              bestScores[i] = score;
+              bestChunks[i] = chunk;
+              break;
+            }
+        }
+      return true;
+    }
+
+    float getCutoff(AtomicInteger cutoff)
+    {
+      return Float.intBitsToFloat(cutoff.get());
+    }
+
+    void lowerCutoff(AtomicInteger cutoff, float value)
+    {
+      while (true)
+      {
+        int current = cutoff.get();
+        if (value >= Float.intBitsToFloat(current) || cutoff.compareAndSet(current, Float.floatToIntBits(value)))
+          return;
+      }
     }
-    return true;
   }
 
-  public String[] guessWord(TracePoint trace[], KeyboardView.ModifierMode shiftMode, int numGuesses)
+  /**
+   * One of the threads working on a Search.  It keeps its own list of the best words, since they only need to
+   * be compared with the ones found by other threads at the end.
+   */
+  private class SearchWorker extends RecursiveAction
   {
-    int numCandidates = numGuesses*2;
-    int bestWords[] = new int[numCandidates];
-    Arrays.fill(bestWords, -1);
-    float bestScores[] = new float[numCandidates];
-    float sumWeights = 0.0f;
-    for (int i = 0; i < trace.length; i++)
-      sumWeights += trace[i].weight;
-    for (int i = 0; i < bestScores.length; i++)
-      bestScores[i] = sumWeights;
-    ArrayList<SortedPrefix> candidatePrefixes = new ArrayList<SortedPrefix>();
-    float prefixCutoff = PREFIX_CUTOFF;
-    for (Prefix prefix : prefixes)
+    final Search search;
+    final int bestWords[];
+    final float bestScores[];
+    final int bestChunks[];
+    final char word[];
+    final SearchStats stats = new SearchStats();
+    int lastMediumPrefix = -1;
+    int lastLongPrefix = -1;
+    boolean skipMediumPrefix = false;
+    boolean skipLongPrefix = false;
+
+    SearchWorker(Search search)
+    {
+      this.search = search;
+      bestWords = new int[search.numCandidates];
+      bestScores = new float[search.numCandidates];
+      bestChunks = new int[search.numCandidates];
+      Arrays.fill(bestWords, -1);
+      Arrays.fill(bestScores, search.sumWeights);
+      word = new char[maxTraceLength];
+    }
+
+    protected void compute()
     {
-      if (trace[0].getKeyDistance(prefix.prefix[0]) > 0.7f)
-        continue;
-      float score = scorePrefix(prefix.prefix, trace, prefixCutoff);
-      if (score < prefixCutoff)
+      ScoreCache cache = scoreCache.get();
+      cache.reset(search.trace.size(), Math.max(search.maxLength, LONG_PREFIX_LENGTH));
+      while (!search.canceled)
       {
-        candidatePrefixes.add(new SortedPrefix(prefix, score));
-        if (score < prefixCutoff-2.0f)
-          prefixCutoff = score+2.0f;
+        int chunk = search.nextChunk.getAndIncrement();
+        if (chunk >= search.numChunks)
+          return;
+        if (search.request != null && search.request.isCanceled())
+        {
+          search.canceled = true;
+          return;
+        }
+        if (chunk < search.numShortChunks)
+          scoreShortWords(chunk, cache);
+        else
+          scorePrefixWords(chunk, cache);
       }
     }
-    for (int i = candidatePrefixes.size()-1; i >= 0; i--)
-      if (candidatePrefixes.get(i).score > prefixCutoff)
-        candidatePrefixes.remove(i);
-    Collections.sort(candidatePrefixes);
-    int minLength = trace.length/2;
-    int maxLength = (int) (trace.length*1.26f)+3
-        ;
-    if (minLength < SHORT_PREFIX_LENGTH)
+
+    private void scoreShortWords(int chunk, ScoreCache cache)
     {
-      for (int wordIndex : shortWords)
+      TraceCosts costs = search.costs;
+      int end = search.shortChunkEnd[chunk];
+      for (int w = search.shortChunkStart[chunk]; w < end; w++)
       {
-        char word[] = wordTraces[wordIndex];
-        if (word.length < minLength)
-          continue;
-        if (trace[0].getKeyDistance(word[0]) > 0.7f)
-          continue;
-        float score = scoreWord(word, trace, bestScores[numCandidates-1]);
-        if (score >= bestScores[numCandidates-1])
+        int wordIndex = shortWords.get(w);
+        int length = getTrace(wordIndex, word);
+        float cutoff = search.getCutoff(search.wordCutoff);
+        if (costs.getLowerBound(word[0], word[length-1], keyMasks.get(wordIndex)) >= cutoff+BOUND_TOLERANCE)
+        {
+          stats.lowerBound++;
           continue;
-        for (int i = 0; i < numCandidates; i++)
-          if (score < bestScores[i])
-          {
-            for (int j = numCandidates-1; j > i; j--)
-            {
-              bestWords[j] = bestWords[j-1];
-              bestScores[j] = bestScores[j-1];
-            }
-            bestWords[i] = wordIndex;
-            bestScores[i] = score;
-            break;
-          }
+        }
+        stats.scored++;
+        float score = scoreWord(word, length, costs, cutoff, cache);
+        if (score < cutoff)
+          addWord(wordIndex, score, chunk);
       }
     }
-    int lastMediumPrefix = -1;
-    int lastLongPrefix = -1;
-    boolean skipMediumPrefix = false;
-    boolean skipLongPrefix = false;
-    float mediumPrefixCutoff = MEDIUM_PREFIX_CUTOFF;
-    float longPrefixCutoff = LONG_PREFIX_CUTOFF;
-    for (SortedPrefix prefix : candidatePrefixes)
+
+    private void scorePrefixWords(int chunk, ScoreCache cache)
     {
-      Prefix p = prefix.prefix;
-      for (int k = p.start; k < p.end; k++)
+      TraceCosts costs = search.costs;
+      SortedPrefix prefix = search.candidatePrefixes.get(chunk-search.numShortChunks);
+      int start = prefixStart.get(prefix.prefix);
+      int end = prefixEnd.get(prefix.prefix);
+      int mediumRange = findFirstPrefixRange(mediumPrefixEnd, numMediumPrefixes, start);
+      int longRange = findFirstPrefixRange(longPrefixEnd, numLongPrefixes, start);
+      for (int k = start; k < end; k++)
       {
-        char word[] = wordTraces[k];
-        if (word.length < minLength || word.length > maxLength)
+        int traceStart = traceOffsets.get(k);
+        int length = traceOffsets.get(k+1)-traceStart;
+        if (length < search.minLength || length > search.maxLength)
+        {
+          stats.wrongLength++;
+          continue;
+        }
+        if (isVariant(k))
+        {
+          stats.variant++;
           continue;
-        int mediumPrefix = mediumPrefixIndex[k];
+        }
+        mediumRange = findPrefixRange(mediumPrefixEnd, numMediumPrefixes, mediumRange, k);
+        int mediumPrefix = (mediumRange < numMediumPrefixes && mediumPrefixStart.get(mediumRange) <= k ? mediumRange : -1);
         if (mediumPrefix == lastMediumPrefix)
         {
           if (skipMediumPrefix)
+          {
+            stats.mediumPrefix++;
             continue;
+          }
         }
         else
         {
@@ -404,21 +1038,27 @@ public class Dictionary
           skipMediumPrefix = false;
           if (mediumPrefix > -1)
           {
-            float score = scorePrefix(mediumPrefixes[mediumPrefix], trace, mediumPrefixCutoff);
-            if (score > mediumPrefixCutoff)
+            getPrefix(mediumPrefixes, mediumPrefix, MEDIUM_PREFIX_LENGTH, word);
+            float cutoff = search.getCutoff(search.mediumPrefixCutoff);
+            float score = scorePrefix(word, MEDIUM_PREFIX_LENGTH, costs, cutoff, cache);
+            if (score > cutoff)
             {
               skipMediumPrefix = true;
+              stats.mediumPrefix++;
               continue;
             }
-            if (score+2.0f < mediumPrefixCutoff)
-              mediumPrefixCutoff = score+2.0f;
+            search.lowerCutoff(search.mediumPrefixCutoff, score+2.0f);
           }
         }
-        int longPrefix = longPrefixIndex[k];
+        longRange = findPrefixRange(longPrefixEnd, numLongPrefixes, longRange, k);
+        int longPrefix = (longRange < numLongPrefixes && longPrefixStart.get(longRange) <= k ? longRange : -1);
         if (longPrefix == lastLongPrefix)
         {
           if (skipLongPrefix)
+          {
+            stats.longPrefix++;
             continue;
+          }
         }
         else
         {
@@ -426,143 +1066,115 @@ public class Dictionary
           skipLongPrefix = false;
           if (longPrefix > -1)
           {
-            float score = scorePrefix(longPrefixes[longPrefix], trace, longPrefixCutoff);
-            if (score > longPrefixCutoff)
+            getPrefix(longPrefixes, longPrefix, LONG_PREFIX_LENGTH, word);
+            float cutoff = search.getCutoff(search.longPrefixCutoff);
+            float score = scorePrefix(word, LONG_PREFIX_LENGTH, costs, cutoff, cache);
+            if (score > cutoff)
             {
               skipLongPrefix = true;
+              stats.longPrefix++;
               continue;
             }
-            if (score+2.0f < longPrefixCutoff)
-              longPrefixCutoff = score+2.0f;
+            search.lowerCutoff(search.longPrefixCutoff, score+2.0f);
           }
         }
-        float score = scoreWord(word, trace, bestScores[numCandidates-1]);
-        if (score >= bestScores[numCandidates-1])
+        float cutoff = search.getCutoff(search.wordCutoff);
+        if (costs.getLowerBound((char) traceBytes.get(traceStart), (char) traceBytes.get(traceStart+length-1), keyMasks.get(k)) >= cutoff+BOUND_TOLERANCE)
+        {
+          stats.lowerBound++;
           continue;
-        for (int i = 0; i < numCandidates; i++)
-          if (score < bestScores[i])
-          {
-            for (int j = numCandidates-1; j > i; j--)
-            {
-              bestWords[j] = bestWords[j-1];
-              bestScores[j] = bestScores[j-1];
-            }
-            bestWords[i] = k;
-            bestScores[i] = score;
-            if (bestScores[numCandidates-1] < mediumPrefixCutoff)
-              mediumPrefixCutoff = bestScores[numCandidates-1];
-            if (bestScores[numCandidates-1] < longPrefixCutoff)
-              longPrefixCutoff = bestScores[numCandidates-1];
-            break;
-          }
+        }
+        stats.scored++;
+        getTrace(k, word);
+        float score = scoreWord(word, length, costs, cutoff, cache);
+        if (score < cutoff && addWord(k, score, chunk))
+        {
+          float wordCutoff = search.getCutoff(search.wordCutoff);
+          search.lowerCutoff(search.mediumPrefixCutoff, wordCutoff);
+          search.lowerCutoff(search.longPrefixCutoff, wordCutoff);
+        }
       }
     }
-    float adjustedScores[] = new float[bestScores.length];
-    for (int i = 0; i < bestScores.length; i++)
+
+    /**
+     * Add a word to this thread's list if it is one of the best so far, and lower the shared cutoff to the
+     * worst score on the list.  Returns whether it was added.
+     */
+    private boolean addWord(int wordIndex, float score, int chunk)
     {
-      if (bestWords[i] > -1)
-        adjustedScores[i] = bestScores[i]-0.0025f*wordFrequency[bestWords[i]];
-      else
-        adjustedScores[i] = Float.MAX_VALUE;
-    }
-    for (int i = 1; i < bestWords.length; i++)
-      for (int j = i-1; j >= 0 && adjustedScores[j] > adjustedScores[j+1]; j--)
-      {
-        int swapWord = bestWords[j];
-        float swapScore = bestScores[j];
-        float swapAdjusted = adjustedScores[j];
-        bestWords[j] = bestWords[j+1];
-        bestScores[j] = bestScores[j+1];
-        adjustedScores[j] = adjustedScores[j+1];
-        bestWords[j+1] = swapWord;
-        bestScores[j+1] = swapScore;
-        adjustedScores[j+1] = swapAdjusted;
-      }
-    String choices[] = new String[numGuesses];
-    for (int i = 0; i < numGuesses; i++)
-      if (bestWords[i] != -1)
-      {
-        char word[] = words[bestWords[i]];
-        if (shiftMode == KeyboardView.ModifierMode.DOWN)
-        {
-          word = word.clone();
-          word[0] = Character.toUpperCase(word[0]);
-        }
-        else if (shiftMode == KeyboardView.ModifierMode.LOCKED)
+      int numCandidates = search.numCandidates;
+      for (int i = 0; i < numCandidates; i++)
+        if (score < bestScores[i])
         {
-          word = word.clone();
-          for (int j = 0; j < word.length; j++)
-            word[j] = Character.toUpperCase(word[j]);
+          for (int j = numCandidates-1; j > i; j--)
+          {
+            bestWords[j] = bestWords[j-1];
+            bestScores[j] = bestScores[j-1];
+            bestChunks[j] = bestChunks[j-1];
+          }
+          bestWords[i] = wordIndex;
+          bestScores[i] = score;
+          bestChunks[i] = chunk;
+          search.lowerCutoff(search.wordCutoff, bestScores[numCandidates-1]);
+          return true;
         }
-        choices[i] = new String(word);
-      }
-    return choices;
+      return false;
+    }
   }
 
-  private static float scorePrefix(char word[], TracePoint trace[], float cutoff)
+  static float scorePrefix(char word[], int length, TraceCosts costs, float cutoff, ScoreCache cache)
   {
-    int minTrace = (word.length-1)/2;
-    int maxTrace = Math.min(trace.length, (int) Math.ceil(word.length*1.25));
-    TracePoint first = trace[0];
-    cutoff -= first.getKeyDistance(word[0])*first.weight;
+    // Scoring a prefix is the same as scoring it as a complete word against the start of the trace.  Try every
+    // length of trace it could plausibly correspond to.
+
+    cache.setWord(word, length);
+    int minTrace = (length-1)/2;
+    int maxTrace = Math.min(costs.length, (int) Math.ceil(length*1.25));
+    float firstCost = costs.keyCost[getSymbol(word[0])];
+    cutoff -= firstCost;
     float bestScore = cutoff+0.01f;
     for (int i = minTrace; i < maxTrace; i++)
     {
-      float score = scorePrefix(word, trace, 0, word.length-1, 0, i, word.length-1, cutoff);
+      float score = scoreWord(word, costs, 0, length-1, 0, i, cutoff, cache, cache.root[i]);
       if (score < bestScore)
       {
         bestScore = score;
         cutoff = bestScore;
       }
     }
-    return first.getKeyDistance(word[0])*first.weight+bestScore;
-  }
-
-  private static float scorePrefix(char word[], TracePoint trace[], int wordStart, int wordEnd, int traceStart, int traceEnd, int lastCharacterToScore, float cutoff)
-  {
-    int length = traceEnd-traceStart;
-    if (length < 2)
-      return scorePrefixSegment(word, trace, wordStart, wordEnd, traceEnd, lastCharacterToScore);
-    float bestScore = cutoff+0.01f;
-    int mid = traceStart+length/2;
-    int min = length/4;
-    for (int i = wordStart+min; i <= wordEnd-min; i++)
-    {
-      float score = scorePrefix(word, trace, wordStart, i, traceStart, mid, lastCharacterToScore, cutoff);
-      if (score < cutoff)
-      {
-        score += scorePrefix(word, trace, i, wordEnd, mid, traceEnd, lastCharacterToScore, cutoff-score);
-        if (score < bestScore)
-        {
-          bestScore = score;
-          cutoff = bestScore;
-        }
-      }
-    }
-    return bestScore;
+    return firstCost+bestScore;
   }
 
-  private static float scoreWord(char word[], TracePoint trace[], float cutoff)
+  static float scoreWord(char word[], int length, TraceCosts costs, float cutoff, ScoreCache cache)
   {
-    TracePoint first = trace[0];
-    cutoff -= first.getKeyDistance(word[0])*first.weight;
-    return first.getKeyDistance(word[0])*first.weight+scoreWord(word, trace, 0, word.length-1, 0, trace.length-1, cutoff);
+    cache.setWord(word, length);
+    float firstCost = costs.keyCost[getSymbol(word[0])];
+    cutoff -= firstCost;
+    return firstCost+scoreWord(word, costs, 0, length-1, 0, costs.length-1, cutoff, cache, cache.root[costs.length-1]);
   }
 
-  private static float scoreWord(char word[], TracePoint trace[], int wordStart, int wordEnd, int traceStart, int traceEnd, float cutoff)
+  private static float scoreWord(char word[], TraceCosts costs, int wordStart, int wordEnd, int traceStart, int traceEnd, float cutoff, ScoreCache cache, int node)
   {
     int length = traceEnd-traceStart;
     if (length < 2)
-      return scoreSegment(word, trace, wordStart, wordEnd, traceEnd);
+      return scoreSegment(word, costs, wordStart, wordEnd, traceEnd);
+
+    // See if this part of the word has already been scored against this part of the trace.  If the score
+    // was not below the cutoff it was computed with, it is only a lower bound.
+
+    int index = cache.getIndex(node, wordStart, wordEnd);
+    if (cache.isValid(index, wordEnd) && cutoff <= cache.cutoff[index])
+      return cache.score[index];
+    float originalCutoff = cutoff;
     float bestScore = cutoff+0.01f;
     int mid = traceStart+length/2;
     int min = length/4;
     for (int i = wordStart+min; i <= wordEnd-min; i++)
     {
-      float score = scoreWord(word, trace, wordStart, i, traceStart, mid, cutoff);
+      float score = scoreWord(word, costs, wordStart, i, traceStart, mid, cutoff, cache, cache.leftChild[node]);
       if (score < cutoff)
       {
-        score += scoreWord(word, trace, i, wordEnd, mid, traceEnd, cutoff-score);
+        score += scoreWord(word, costs, i, wordEnd, mid, traceEnd, cutoff-score, cache, cache.rightChild[node]);
         if (score < bestScore)
         {
           bestScore = score;
@@ -570,27 +1182,30 @@ public class Dictionary
         }
       }
     }
+    cache.store(index, bestScore, bestScore < originalCutoff ? Float.MAX_VALUE : originalCutoff);
     return bestScore;
   }
 
-  private static float scorePrefixSegment(char word[], TracePoint trace[], int wordStart, int wordEnd, int traceEnd, int lastCharacterToScore)
+  private static float scoreSegment(char word[], TraceCosts costs, int wordStart, int wordEnd, int traceEnd)
   {
     float score = 0.0f;
     char c = word[wordEnd];
-    int end = Math.min(wordEnd, lastCharacterToScore);
     if (traceEnd == 0)
-      score += end;
-    else if (wordStart < end)
+      score += wordEnd;
+    else if (wordStart < wordEnd)
     {
       char cprev = word[wordStart];
-      TracePoint point = trace[traceEnd-1];
+      int offset = (traceEnd-1)*27;
+      int viaOrder[] = costs.viaOrder;
+      float viaCost[] = costs.viaCost;
       int lastIndex = -1;
-      for (int currentChar = wordStart+1; currentChar < end; currentChar++)
+      for (int currentChar = wordStart+1; currentChar < wordEnd; currentChar++)
       {
         char cvia = word[currentChar];
         if (cvia != cprev)
         {
-          int index = point.getViaKeyIndex(cvia);
+          int entry = offset+getSymbol(cvia);
+          int index = viaOrder[entry];
           if (cvia != c)
           {
             if (index == -1)
@@ -598,7 +1213,7 @@ public class Dictionary
               score += MISSING_VIA_LETTER;
               continue;
             }
-            score += VIA_DISTANCE_MULTIPLIER*point.viaKeys[index].nearestDistance;
+            score += viaCost[entry];
             if (index < lastIndex)
               score += UNORDERED_VIA_COST;
           }
@@ -606,141 +1221,486 @@ public class Dictionary
         }
       }
     }
-    if (wordEnd <= lastCharacterToScore)
-    {
-      TracePoint point = trace[traceEnd];
-      score += point.getKeyDistance(c)*point.weight;
-    }
+    score += costs.keyCost[traceEnd*27+getSymbol(c)];
     return score;
   }
 
-  private static float scoreSegment(char word[], TracePoint trace[], int wordStart, int wordEnd, int traceEnd)
+  /**
+   * Get the index of a character in a word's trace (a letter or an apostrophe) in the tables of TraceCosts.
+   */
+  private static int getSymbol(char c)
   {
-    float score = 0.0f;
-    char c = word[wordEnd];
-    if (traceEnd == 0)
-      score += wordEnd;
-    else if (wordStart < wordEnd)
+    return (c == '\'' ? 26 : c-'a');
+  }
+
+  /**
+   * Find the most common words starting with a prefix, ignoring case.  This starts a new CompletionSession, so
+   * callers that look up one prefix after another should keep their own session and pass it instead.
+   */
+  public String[] findWordsStartingWith(String prefix)
+  {
+    return findWordsStartingWith(prefix, new CompletionSession());
+  }
+
+  /**
+   * Find the most common words starting with a prefix, ignoring case.  The session keeps the range of words
+   * for each part of the prefix it was last called with, so when a letter is added or removed only the change
+   * needs to be looked up.
+   */
+  public String[] findWordsStartingWith(String prefix, CompletionSession session)
+  {
+    UserWords userWords = this.userWords;
+    int length = prefix.length();
+    if (session.dictionary != this || session.userWords != userWords)
     {
-      char cprev = word[wordStart];
-      TracePoint point = trace[traceEnd-1];
-      int lastIndex = -1;
-      for (int currentChar = wordStart+1; currentChar < wordEnd; currentChar++)
+      session.dictionary = this;
+      session.userWords = userWords;
+      session.length = 0;
+    }
+    session.ensureCapacity(length);
+
+    // Keep the ranges for the part of the prefix that is unchanged, then narrow them down for each character
+    // after it.  The words in a range all start with the same characters, so they are sorted by the next one.
+
+    int common = 0;
+    while (common < session.length && common < length && session.prefix[common] == prefix.charAt(common))
+      common++;
+    int start = (common == 0 ? 0 : session.rangeStart[common-1]);
+    int end = (common == 0 ? numWords : session.rangeEnd[common-1]);
+    for (int i = common; i < length; i++)
+    {
+      char c = prefix.charAt(i);
+      int low = start, high = end;
+      while (low < high)
       {
-        char cvia = word[currentChar];
-        if (cvia != cprev)
-        {
-          int index = point.getViaKeyIndex(cvia);
-          if (cvia != c)
-          {
-            if (index == -1)
-            {
-              score += MISSING_VIA_LETTER;
-              continue;
-            }
-            score += VIA_DISTANCE_MULTIPLIER*point.viaKeys[index].nearestDistance;
-            if (index < lastIndex)
-              score += UNORDERED_VIA_COST;
-          }
-          lastIndex = index;
-        }
+        int mid = (low+high)>>>1;
+        if (compareWordChar(mid, i, c) < 0)
+          low = mid+1;
+        else
+          high = mid;
+      }
+      start = low;
+      high = end;
+      while (low < high)
+      {
+        int mid = (low+high)>>>1;
+        if (compareWordChar(mid, i, c) <= 0)
+          low = mid+1;
+        else
+          high = mid;
       }
+      end = low;
+      session.prefix[i] = c;
+      session.rangeStart[i] = start;
+      session.rangeEnd[i] = end;
+      session.choices[i] = null;
     }
-    TracePoint point = trace[traceEnd];
-    score += point.getKeyDistance(c)*point.weight;
-    return score;
+    session.length = length;
+    if (length == 0)
+      return getCompletions(prefix.toCharArray(), start, end, userWords);
+    if (session.choices[length-1] == null)
+      session.choices[length-1] = getCompletions(prefix.toCharArray(), start, end, userWords);
+    return session.choices[length-1].clone();
   }
 
-  public String[] findWordsStartingWith(String prefix)
+  /**
+   * Compare one character of a word to a character of a prefix, ignoring case.  Words that are too short
+   * to have the character come first.
+   */
+  private int compareWordChar(int index, int i, char c)
+  {
+    if (getWordLength(index) <= i)
+      return -1;
+    char c1 = Character.toLowerCase(getWordChar(index, getWordStart(index), i));
+    char c2 = Character.toLowerCase(c);
+    return (c1 < c2 ? -1 : (c1 > c2 ? 1 : 0));
+  }
+
+  /**
+   * Get the most common words in a range of words starting with a prefix, including the ones from the user
+   * dictionary.  For large ranges they were found when the dictionary was compiled.
+   */
+  private String[] getCompletions(char prefixChars[], int start, int end, UserWords userWords)
+  {
+    int indices[] = new int[NUM_COMPLETIONS];
+    Arrays.fill(indices, -1);
+    int range = findCompletionRange(start, end);
+    if (range > -1)
+    {
+      for (int i = 0; i < NUM_COMPLETIONS; i++)
+        indices[i] = completions.get(NUM_COMPLETIONS*range+i);
+    }
+    else
+    {
+      for (int i = start; i < end; i++)
+        addCompletion(indices, i, userWords);
+    }
+    for (int i = userWords.findFirst(prefixChars); i < userWords.size() && userWords.startsWithIgnoreCase(i, prefixChars); i++)
+      addCompletion(indices, numWords+i, userWords);
+    String choices[] = new String[indices.length];
+    for (int i = 0; i < choices.length; i++)
+      if (indices[i] > -1)
+        choices[i] = new String(getWord(indices[i], userWords));
+    return choices;
+  }
+
+  /**
+   * Find the completion range that covers exactly the specified words, or -1 if there is none.  The ranges are
+   * sorted by start, and the ones with the same start are nested.
+   */
+  private int findCompletionRange(int start, int end)
   {
-    char prefixChars[] = prefix.toCharArray();
+    int low = 0, high = numCompletionRanges;
+    while (low < high)
+    {
+      int mid = (low+high)>>>1;
+      if (completionStart.get(mid) < start)
+        low = mid+1;
+      else
+        high = mid;
+    }
+    for (; low < numCompletionRanges && completionStart.get(low) == start; low++)
+      if (completionEnd.get(low) == end)
+        return low;
+    return -1;
+  }
 
-    // Find the first word starting with this prefix.
+  private void addCompletion(int indices[], int index, UserWords userWords)
+  {
+    int last = indices.length-1;
+    int frequency = getFrequency(index, userWords);
+    if (indices[last] == -1 || frequency > getFrequency(indices[last], userWords))
+    {
+      // Add this word to the list.
 
-    int start = Arrays.binarySearch(words, prefixChars, wordComparator);
-    if (start < 0)
-      start = -(start+1);
+      int insert = 0;
+      while (indices[insert] > -1 && frequency <= getFrequency(indices[insert], userWords))
+        insert++;
+      for (int j = indices.length-1; j > insert; j--)
+        indices[j] = indices[j-1];
+      indices[insert] = index;
+    }
+  }
 
-    // Find the last word starting with this trace.
+  /**
+   * This class holds partial scores for a trace so they can be shared between words.  The trace is recursively
+   * split into a fixed tree of segments, and the score for matching part of a word to a segment depends only on
+   * the characters in that part.  Words are scored in sorted order, which amounts to a depth first traversal of
+   * a trie of the words: when moving to the next word, only the scores involving characters after the common
+   * prefix are discarded, so each shared prefix is scored once.  Prefixes are scored against the start of the
+   * trace, so there is a separate tree for each length of trace they can be matched to.
+   */
+  static class ScoreCache
+  {
+    int root[];
+    int leftChild[];
+    int rightChild[];
+    int nodeOffset[];
+    int nodeStride[];
+    float score[];
+    float cutoff[];
+    int version[];
+    int charVersion[];
+    char word[];
+    int length;
+    int currentVersion;
+    private int size;
 
-    int end = start;
-    for (; end < words.length && startsWithIgnoreCase(words[end], prefixChars); end++)
-      ;
+    ScoreCache()
+    {
+      root = leftChild = rightChild = nodeOffset = nodeStride = version = charVersion = new int[0];
+      score = cutoff = new float[0];
+      word = new char[0];
+      currentVersion = 1;
+    }
 
-    // Find the most common words starting with this trace.
+    /**
+     * Prepare to score words against a new trace.  Arrays are only reallocated if they are too small for it, so
+     * a decoder that keeps using the same cache doesn't allocate anything for most traces.  The scores stored
+     * for the previous trace are discarded, since the next word is treated as having nothing in common with the
+     * last one.
+     */
+    void reset(int traceLength, int maxLength)
+    {
+      // Build a tree for every trace end a prefix can be scored against, and one for the full trace.
 
-    int indices[] = new int[10];
-    int last = indices.length-1;
-    Arrays.fill(indices, -1);
-    for (int i = start; i < end; i++)
+      int numPrefixTrees = Math.min(traceLength, MAX_PREFIX_TRACE_LENGTH);
+      if (root.length < traceLength)
+        root = new int[traceLength];
+      int numNodes = (traceLength > numPrefixTrees ? countNodes(traceLength-1) : 0);
+      for (int i = 0; i < numPrefixTrees; i++)
+        numNodes += countNodes(i);
+      if (leftChild.length < numNodes)
+      {
+        leftChild = new int[numNodes];
+        rightChild = new int[numNodes];
+        nodeOffset = new int[numNodes];
+        nodeStride = new int[numNodes];
+      }
+      size = 0;
+      int node = 0;
+      for (int i = 0; i < traceLength; i++)
+      {
+        if (i >= numPrefixTrees && i < traceLength-1)
+          continue;
+        root[i] = node;
+        node = buildTree(node, 0, i, i == traceLength-1 ? maxLength : LONG_PREFIX_LENGTH);
+      }
+      if (score.length < size)
+      {
+        score = new float[size];
+        cutoff = new float[size];
+        version = new int[size];
+      }
+      if (charVersion.length < maxLength)
+      {
+        charVersion = new int[maxLength];
+        word = new char[maxLength];
+      }
+      length = 0;
+    }
+
+    private static int countNodes(int length)
+    {
+      if (length < 2)
+        return 1;
+      return 1+countNodes(length/2)+countNodes(length-length/2);
+    }
+
+    private int buildTree(int node, int traceStart, int traceEnd, int maxLength)
+    {
+      // Number the nodes in the order the scoring function visits them, and return the next unused number.
+      // Leaves are cheap to score, so scores are only stored for the other nodes.
+
+      int length = traceEnd-traceStart;
+      if (length < 2)
+        return node+1;
+      nodeOffset[node] = size;
+      nodeStride[node] = maxLength;
+      size += maxLength*maxLength;
+      int mid = traceStart+length/2;
+      leftChild[node] = node+1;
+      rightChild[node] = buildTree(node+1, traceStart, mid, maxLength);
+      return buildTree(rightChild[node], mid, traceEnd, maxLength);
+    }
+
+    /**
+     * Switch to a new word.  Every character from the first one that differs is marked as changed, which
+     * invalidates the scores for all parts of the word that end at or after it.
+     */
+    void setWord(char newWord[], int newLength)
     {
-      if (indices[last] == -1 || wordFrequency[i] > wordFrequency[indices[last]])
+      int common = 0;
+      while (common < length && common < newLength && word[common] == newWord[common])
+        common++;
+      nextVersion();
+      int end = Math.max(length, newLength);
+      for (int i = common; i < end; i++)
+        charVersion[i] = currentVersion;
+      for (int i = common; i < newLength; i++)
+        word[i] = newWord[i];
+      length = newLength;
+    }
+
+    private void nextVersion()
+    {
+      if (currentVersion == Integer.MAX_VALUE)
       {
-        // Add this word to the list.
-
-        int insert = 0;
-        while (indices[insert] > -1 && wordFrequency[i] <= wordFrequency[indices[insert]])
-          insert++;
-        for (int j = indices.length-1; j > insert; j--)
-          indices[j] = indices[j-1];
-        indices[insert] = i;
+        // Start counting again.  This means forgetting every stored score.
+
+        Arrays.fill(version, 0);
+        Arrays.fill(charVersion, 1);
+        currentVersion = 1;
       }
+      currentVersion++;
+    }
+
+    int getIndex(int node, int wordStart, int wordEnd)
+    {
+      return nodeOffset[node]+wordStart*nodeStride[node]+wordEnd;
+    }
+
+    boolean isValid(int index, int wordEnd)
+    {
+      return (version[index] >= charVersion[wordEnd]);
+    }
+
+    void store(int index, float value, float maxCutoff)
+    {
+      score[index] = value;
+      cutoff[index] = maxCutoff;
+      version[index] = currentVersion;
     }
-    String choices[] = new String[indices.length];
-    for (int i = 0; i < choices.length; i++)
-      if (indices[i] > -1)
-        choices[i] = new String(words[indices[i]]);
-    return choices;
   }
 
-  private static class Prefix
+  /**
+   * This class holds everything the scoring functions need to know about a trace, so scoring a word only reads
+   * from a few flat arrays instead of the points and their via keys.  The tables have 27 entries for each point,
+   * one for every character a word's trace can contain.  keyCost is the weighted distance from the point to the
+   * key, viaOrder is the position of the key among the point's via keys (or -1 if the trace didn't pass over it),
+   * and viaCost is the cost of its distance from the trace.  It is built once per trace and never modified, so the
+   * threads working on a search share it.
+   *
+   * letterCost is the least a letter can add to the score of a word, other than as its first or last letter.
+   * Every letter in the middle of a word is either matched to a point between the ends of the trace or is a via
+   * key of a segment (costing MISSING_VIA_LETTER if the trace didn't pass over it).  Repeating the letter at
+   * either end of a segment is free, but that letter was paid for at the end of the segment.
+   */
+  static class TraceCosts
   {
-    public final char prefix[];
-    public int start, end;
+    final int length;
+    final float keyCost[];
+    final float viaCost[];
+    final int viaOrder[];
+    final float letterCost[];
 
-    public Prefix(char prefix[], int start)
+    TraceCosts(Trace trace)
+    {
+      length = trace.size();
+      keyCost = new float[length*27];
+      viaCost = new float[length*27];
+      viaOrder = new int[length*27];
+      Arrays.fill(viaOrder, -1);
+      for (int i = 0; i < length; i++)
+      {
+        for (int symbol = 0; symbol < 27; symbol++)
+          keyCost[i*27+symbol] = trace.getKeyDistance(i, symbol == 26 ? '\'' : 'a'+symbol)*trace.getWeight(i);
+        for (int j = 0; j < trace.getNumViaKeys(i); j++)
+        {
+          int key = trace.getViaKey(i, j);
+          if (key != '\'' && (key < 'a' || key > 'z'))
+            continue;
+          int entry = i*27+getSymbol((char) key);
+          viaOrder[entry] = j;
+          viaCost[entry] = VIA_DISTANCE_MULTIPLIER*trace.getViaKeyDistance(i, j);
+        }
+      }
+      letterCost = new float[27];
+      Arrays.fill(letterCost, MISSING_VIA_LETTER);
+      for (int i = 0; i < length-1; i++)
+        for (int symbol = 0; symbol < 27; symbol++)
+        {
+          int entry = i*27+symbol;
+          if (i > 0)
+            letterCost[symbol] = Math.min(letterCost[symbol], keyCost[entry]);
+          if (viaOrder[entry] > -1)
+            letterCost[symbol] = Math.min(letterCost[symbol], viaCost[entry]);
+        }
+    }
+
+    /**
+     * Get a lower bound on the score of a word from its first and last characters and the set of keys in it.
+     * The terms are added in a different order than when the word is scored, so the score can be slightly lower
+     * because of rounding.
+     */
+    float getLowerBound(char first, char last, int keyMask)
+    {
+      int firstSymbol = getSymbol(first);
+      int lastSymbol = getSymbol(last);
+      float bound = keyCost[firstSymbol]+keyCost[(length-1)*27+lastSymbol];
+      for (int mask = keyMask & ~(1<<firstSymbol) & ~(1<<lastSymbol); mask != 0; mask &= mask-1)
+        bound += letterCost[Integer.numberOfTrailingZeros(mask)];
+      return bound;
+    }
+  }
+
+  /**
+   * The short prefixes that match the first PREFIX_TRACE_LENGTH points of a trace.
+   */
+  public static class PrefixMatches
+  {
+    final Trace start;
+    ArrayList<SortedPrefix> prefixes;
+
+    public PrefixMatches(Trace start)
     {
-      this.prefix = prefix;
       this.start = start;
-      end = start;
     }
 
-    public boolean hasPrefix(char word[])
+    public PrefixMatches(TracePoint start[])
     {
-      if (word.length < prefix.length)
-        return false;
-      for (int i = 0; i < prefix.length; i++)
-        if (word[i] != prefix[i])
-          return false;
-      return true;
+      this(new Trace(start));
+    }
+
+    /**
+     * Forget the prefixes matched for an earlier trace, so this can be reused for a new one.
+     */
+    void clear()
+    {
+      start.clear();
+      prefixes = null;
+    }
+
+    boolean appliesTo(Trace trace)
+    {
+      return trace.startsWith(start);
+    }
+  }
+
+  /**
+   * The ranges of words starting with each part of the prefix that was last completed, and the completions
+   * found for them.  A session should only be used from one thread.
+   */
+  public static class CompletionSession
+  {
+    Dictionary dictionary;
+    UserWords userWords;
+    int length;
+    char prefix[] = new char[16];
+    int rangeStart[] = new int[16];
+    int rangeEnd[] = new int[16];
+    String choices[][] = new String[16][];
+
+    void ensureCapacity(int capacity)
+    {
+      if (capacity <= prefix.length)
+        return;
+      capacity = Math.max(capacity, 2*prefix.length);
+      prefix = Arrays.copyOf(prefix, capacity);
+      rangeStart = Arrays.copyOf(rangeStart, capacity);
+      rangeEnd = Arrays.copyOf(rangeEnd, capacity);
+      choices = Arrays.copyOf(choices, capacity);
     }
   }
 
-  private static class SortedWord implements Comparable<SortedWord>
+  /**
+   * The number of words skipped at each stage of a search, and the number that were scored.
+   */
+  public static class SearchStats
   {
-    public final char word[];
-    public final short frequency;
+    public int wrongLength;
+    public int firstKey;
+    public int variant;
+    public int expected;
+    public int mediumPrefix;
+    public int longPrefix;
+    public int lowerBound;
+    public int scored;
 
-    public SortedWord(char word[], short frequency)
+    void add(SearchStats stats)
     {
-      this.word = word;
-      this.frequency = frequency;
+      wrongLength += stats.wrongLength;
+      firstKey += stats.firstKey;
+      variant += stats.variant;
+      expected += stats.expected;
+      mediumPrefix += stats.mediumPrefix;
+      longPrefix += stats.longPrefix;
+      lowerBound += stats.lowerBound;
+      scored += stats.scored;
     }
 
-    public int compareTo(SortedWord other)
+    public String toString()
     {
-      char word1[] = word;
-      char word2[] = other.word;
-      return wordComparator.compare(word1, word2);
+      return "length "+wrongLength+", first key "+firstKey+", variant "+variant+", expected "+expected+", medium prefix "+mediumPrefix+", long prefix "+longPrefix+", lower bound "+lowerBound+", scored "+scored;
     }
   }
 
   private static class SortedPrefix implements Comparable<SortedPrefix>
   {
-    public final Prefix prefix;
+    public final int prefix;
     public final float score;
 
-    public SortedPrefix(Prefix prefix, float score)
+    public SortedPrefix(int prefix, float score)
     {
       this.prefix = prefix;
       this.score = score;
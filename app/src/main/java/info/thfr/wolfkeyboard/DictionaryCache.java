@@ -0,0 +1,86 @@
+package info.thfr.wolfkeyboard;
+
+/**
+ * Copyright 2019         Thomas Frohwein <11335318+rfht@users.noreply.github.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import java.util.*;
+
+/**
+ * This class holds loaded dictionaries so that switching between languages doesn't need to load them again.
+ * When the total size exceeds the limit, the least recently used dictionaries are evicted.  The active
+ * dictionary is never evicted.
+ */
+public class DictionaryCache
+{
+  private final LinkedHashMap<String, Dictionary> dictionaries;
+  private final long maxSize;
+  private long totalSize;
+  private String activeName;
+
+  public DictionaryCache(long maxSize)
+  {
+    this.maxSize = maxSize;
+    dictionaries = new LinkedHashMap<String, Dictionary>(4, 0.75f, true);
+  }
+
+  public synchronized Dictionary get(String name)
+  {
+    return dictionaries.get(name);
+  }
+
+  public synchronized boolean contains(String name)
+  {
+    return dictionaries.containsKey(name);
+  }
+
+  public synchronized void put(String name, Dictionary dictionary)
+  {
+    Dictionary old = dictionaries.put(name, dictionary);
+    if (old != null)
+      totalSize -= old.dataSize;
+    totalSize += dictionary.dataSize;
+    evict(maxSize);
+  }
+
+  public synchronized void setActive(String name)
+  {
+    activeName = name;
+    if (dictionaries.containsKey(name))
+      dictionaries.get(name);
+  }
+
+  /**
+   * Release every dictionary except the active one.
+   */
+  public synchronized void trim()
+  {
+    evict(0);
+  }
+
+  private void evict(long size)
+  {
+    Iterator<Map.Entry<String, Dictionary>> iter = dictionaries.entrySet().iterator();
+    while (totalSize > size && iter.hasNext())
+    {
+      Map.Entry<String, Dictionary> entry = iter.next();
+      if (entry.getKey().equals(activeName))
+        continue;
+      totalSize -= entry.getValue().dataSize;
+      iter.remove();
+    }
+  }
+}
@@ -0,0 +1,698 @@
+package info.thfr.wolfkeyboard;
+
+/**
+ * Copyright 2011-2015 by Peter Eastman
+ * Copyright 2019         Thomas Frohwein <11335318+rfht@users.noreply.github.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import android.content.*;
+import android.util.*;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.util.*;
+
+/**
+ * This class converts a raw word list into the binary format used by Dictionary.  The compiled file contains
+ * the packed words, traces, frequencies and prefix tables, so it can be memory mapped and used in place
+ * without parsing anything.  Traces only contain the characters a-z and ', so they are stored with one byte
+ * per character.  Words that are identical to their traces are not stored separately.  Compiled files are
+ * stored in app storage and rebuilt whenever the word list changes.  Words from the user dictionary are not
+ * included; they are kept separately in UserWords.
+ */
+public class DictionaryCompiler
+{
+  static final int MAGIC = 0x444c4657; // "WFLD"
+  static final int VERSION = 8;
+
+  static final int SECTION_WORD_OFFSETS = 0;
+  static final int SECTION_WORD_CHARS = 1;
+  static final int SECTION_TRACE_OFFSETS = 2;
+  static final int SECTION_TRACE_BYTES = 3;
+  static final int SECTION_FREQUENCY = 4;
+  static final int SECTION_PREFIX_BYTES = 5;
+  static final int SECTION_PREFIX_START = 6;
+  static final int SECTION_PREFIX_END = 7;
+  static final int SECTION_SHORT_WORDS = 8;
+  static final int SECTION_MEDIUM_PREFIX_BYTES = 9;
+  static final int SECTION_MEDIUM_PREFIX_START = 10;
+  static final int SECTION_MEDIUM_PREFIX_END = 11;
+  static final int SECTION_LONG_PREFIX_BYTES = 12;
+  static final int SECTION_LONG_PREFIX_START = 13;
+  static final int SECTION_LONG_PREFIX_END = 14;
+  static final int SECTION_KEY_MASKS = 15;
+  static final int SECTION_PREFIX_KEY_START = 16;
+  static final int SECTION_SHORT_WORD_BUCKETS = 17;
+  static final int SECTION_VARIANT_START = 18;
+  static final int SECTION_VARIANTS = 19;
+  static final int SECTION_TRACE_HASH = 20;
+  static final int SECTION_COMPLETION_START = 21;
+  static final int SECTION_COMPLETION_END = 22;
+  static final int SECTION_COMPLETIONS = 23;
+  static final int NUM_SECTIONS = 24;
+
+  // Header layout: magic, version, source stamp (long), word count, prefix count, short word count,
+  // medium prefix count, long prefix count, maximum trace length, trace hash table size, completion range
+  // count, section offsets, total size.
+
+  static final int HEADER_STAMP = 8;
+  static final int HEADER_NUM_WORDS = 16;
+  static final int HEADER_NUM_PREFIXES = 20;
+  static final int HEADER_NUM_SHORT_WORDS = 24;
+  static final int HEADER_NUM_MEDIUM_PREFIXES = 28;
+  static final int HEADER_NUM_LONG_PREFIXES = 32;
+  static final int HEADER_MAX_TRACE_LENGTH = 36;
+  static final int HEADER_TRACE_HASH_SIZE = 40;
+  static final int HEADER_NUM_COMPLETION_RANGES = 44;
+  static final int HEADER_SECTIONS = 48;
+  static final int HEADER_SIZE = HEADER_SECTIONS+4*NUM_SECTIONS+4;
+
+  static final int SHORT_PREFIX_LENGTH = 5;
+  static final int MEDIUM_PREFIX_LENGTH = 7;
+  static final int LONG_PREFIX_LENGTH = 9;
+  static final int NUM_SHORT_WORD_BUCKETS = 27*SHORT_PREFIX_LENGTH;
+  static final int NUM_COMPLETIONS = 10;
+  static final int MIN_COMPLETION_RANGE = 64;
+
+  /**
+   * Get the compiled form of a dictionary.  If an up to date compiled file exists, it is memory mapped.
+   * Otherwise the raw word list is parsed, compiled, and written out so later loads can map it.
+   */
+  public static ByteBuffer open(Context context, String dictionary, int rawId, Map<Integer, Integer> replacements) throws IOException
+  {
+    long stamp = new File(context.getPackageCodePath()).lastModified();
+    File dir = new File(context.getNoBackupFilesDir(), "dictionaries");
+    File file = new File(dir, dictionary+".dict");
+    if (file.exists())
+    {
+      try
+      {
+        ByteBuffer data = map(file);
+        if (isValid(data, stamp))
+          return data;
+      }
+      catch (IOException ex)
+      {
+        Log.d("Flow", "Exception mapping compiled dictionary", ex);
+      }
+    }
+    return save(file, compile(readWordList(context, rawId), replacements, stamp));
+  }
+
+  /**
+   * Write compiled data to a file and map it.  The data is written to a temporary file first, so a partly
+   * written file is never used.  If it can't be saved, the data is returned as it is.
+   */
+  static ByteBuffer save(File file, ByteBuffer data)
+  {
+    try
+    {
+      file.getParentFile().mkdirs();
+      File temp = new File(file.getPath()+".tmp");
+      FileOutputStream out = new FileOutputStream(temp);
+      try
+      {
+        out.getChannel().write(data.duplicate());
+        out.getFD().sync();
+      }
+      finally
+      {
+        out.close();
+      }
+      if (temp.renameTo(file))
+        return map(file);
+    }
+    catch (IOException ex)
+    {
+      Log.d("Flow", "Exception saving compiled file", ex);
+    }
+    return data;
+  }
+
+  /**
+   * Create a compiled dictionary that contains no words.
+   */
+  public static ByteBuffer empty()
+  {
+    return compile(new ArrayList<SortedWord>(), new HashMap<Integer, Integer>(), 0);
+  }
+
+  static ByteBuffer map(File file) throws IOException
+  {
+    RandomAccessFile raf = new RandomAccessFile(file, "r");
+    try
+    {
+      FileChannel channel = raf.getChannel();
+      return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()).order(ByteOrder.LITTLE_ENDIAN);
+    }
+    finally
+    {
+      raf.close();
+    }
+  }
+
+  private static boolean isValid(ByteBuffer data, long stamp)
+  {
+    if (data.capacity() < HEADER_SIZE)
+      return false;
+    return (data.getInt(0) == MAGIC && data.getInt(4) == VERSION && data.getLong(HEADER_STAMP) == stamp &&
+        data.getInt(HEADER_SECTIONS+4*NUM_SECTIONS) == data.capacity());
+  }
+
+  private static ArrayList<SortedWord> readWordList(Context context, int rawId) throws IOException
+  {
+    // Read the whole resource at once, then parse it from memory.
+
+    InputStream in = context.getResources().openRawResource(rawId);
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    try
+    {
+      byte buffer[] = new byte[65536];
+      int count;
+      while ((count = in.read(buffer)) != -1)
+        bytes.write(buffer, 0, count);
+    }
+    finally
+    {
+      in.close();
+    }
+    byte raw[] = bytes.toByteArray();
+    ArrayList<SortedWord> wordList = new ArrayList<SortedWord>();
+    int pos = 0;
+    while (pos < raw.length)
+    {
+      int length = raw[pos++]&255;
+      if (pos+2*length+1 > raw.length)
+        break;
+      char word[] = new char[length];
+      for (int i = 0; i < length; i++, pos += 2)
+        word[i] = (char) (256*(raw[pos]&255)+(raw[pos+1]&255));
+      wordList.add(new SortedWord(word, (short) (raw[pos++]&255)));
+    }
+    return wordList;
+  }
+
+  static ByteBuffer compile(ArrayList<SortedWord> wordList, Map<Integer, Integer> replacements, long stamp)
+  {
+    // Build the traces.  When a word is identical to its trace, only the trace is stored.
+
+    int numWords = wordList.size();
+    char words[][] = new char[numWords][];
+    char wordTraces[][] = new char[numWords][];
+    int wordCharCount = 0, traceCharCount = 0, maxTraceLength = 0;
+    for (int i = 0; i < numWords; i++)
+    {
+      char word[] = wordList.get(i).word;
+      wordTraces[i] = createTrace(word, replacements);
+      words[i] = (Arrays.equals(word, wordTraces[i]) ? new char[0] : word);
+      wordCharCount += words[i].length;
+      traceCharCount += wordTraces[i].length;
+      maxTraceLength = Math.max(maxTraceLength, wordTraces[i].length);
+    }
+
+    // Find the words that have the same trace as an earlier word, such as different capitalizations or accents.
+    // Only the first word with each trace is scored.  Its variants list has the other words with that trace,
+    // and theirs has the first word.
+
+    int firstWithTrace[] = new int[numWords];
+    int variantStart[] = new int[numWords+1];
+    HashMap<String, Integer> traceIndex = new HashMap<String, Integer>();
+    for (int i = 0; i < numWords; i++)
+    {
+      String trace = new String(wordTraces[i]);
+      Integer first = traceIndex.get(trace);
+      if (first == null)
+      {
+        traceIndex.put(trace, i);
+        firstWithTrace[i] = i;
+      }
+      else
+      {
+        firstWithTrace[i] = first;
+        variantStart[first+1]++;
+        variantStart[i+1]++;
+      }
+    }
+    for (int i = 0; i < numWords; i++)
+      variantStart[i+1] += variantStart[i];
+    int variants[] = new int[variantStart[numWords]];
+    int variantEnd[] = Arrays.copyOf(variantStart, numWords);
+    for (int i = 0; i < numWords; i++)
+      if (firstWithTrace[i] != i)
+      {
+        variants[variantEnd[firstWithTrace[i]]++] = i;
+        variants[variantEnd[i]++] = firstWithTrace[i];
+      }
+
+    // Build a hash table from each distinct trace to the first word with it, so words can be looked up
+    // directly.  Collisions go to the next free slot.
+
+    int traceHashSize = getTraceHashSize(traceIndex.size());
+    int traceHash[] = new int[traceHashSize];
+    Arrays.fill(traceHash, -1);
+    for (int i = 0; i < numWords; i++)
+      if (firstWithTrace[i] == i)
+      {
+        int slot = hashTrace(wordTraces[i], wordTraces[i].length)&(traceHashSize-1);
+        while (traceHash[slot] != -1)
+          slot = (slot+1)&(traceHashSize-1);
+        traceHash[slot] = i;
+      }
+
+    // Build the prefix tables.
+
+    ArrayList<char[]> prefixList = new ArrayList<char[]>();
+    ArrayList<Integer> prefixStartList = new ArrayList<Integer>();
+    ArrayList<Integer> prefixEndList = new ArrayList<Integer>();
+    ArrayList<Integer> shortWordList = new ArrayList<Integer>();
+    char currentPrefix[] = null;
+    for (int i = 0; i < numWords; i++)
+    {
+      char word[] = wordTraces[i];
+      if (word.length >= SHORT_PREFIX_LENGTH)
+      {
+        if (currentPrefix == null || !startsWith(word, currentPrefix))
+        {
+          prefixList.add(currentPrefix = substring(word, SHORT_PREFIX_LENGTH));
+          prefixStartList.add(i);
+          prefixEndList.add(i);
+        }
+        prefixEndList.set(prefixEndList.size()-1, i+1);
+      }
+      else if (word.length > 0 && firstWithTrace[i] == i)
+        shortWordList.add(i);
+    }
+
+    // Group the short prefixes by their first key, and the short words by their first key and length, so a
+    // search only visits the groups that can match the start of the trace.  Each group stays in dictionary
+    // order.  The traces of words starting with accented letters are out of order, so the groups need sorting.
+
+    final char prefixFirst[] = new char[prefixList.size()];
+    for (int i = 0; i < prefixFirst.length; i++)
+      prefixFirst[i] = prefixList.get(i)[0];
+    Integer prefixOrder[] = new Integer[prefixList.size()];
+    for (int i = 0; i < prefixOrder.length; i++)
+      prefixOrder[i] = i;
+    Arrays.sort(prefixOrder, new Comparator<Integer>()
+    {
+      public int compare(Integer p1, Integer p2)
+      {
+        return getSymbol(prefixFirst[p1])-getSymbol(prefixFirst[p2]);
+      }
+    });
+    ArrayList<char[]> sortedPrefixList = new ArrayList<char[]>();
+    ArrayList<Integer> sortedPrefixStartList = new ArrayList<Integer>();
+    ArrayList<Integer> sortedPrefixEndList = new ArrayList<Integer>();
+    int prefixKeyStart[] = new int[28];
+    for (int i = 0; i < prefixOrder.length; i++)
+    {
+      int p = prefixOrder[i];
+      sortedPrefixList.add(prefixList.get(p));
+      sortedPrefixStartList.add(prefixStartList.get(p));
+      sortedPrefixEndList.add(prefixEndList.get(p));
+      prefixKeyStart[getSymbol(prefixFirst[p])+1] = i+1;
+    }
+    for (int i = 1; i < prefixKeyStart.length; i++)
+      prefixKeyStart[i] = Math.max(prefixKeyStart[i], prefixKeyStart[i-1]);
+    prefixList = sortedPrefixList;
+    prefixStartList = sortedPrefixStartList;
+    prefixEndList = sortedPrefixEndList;
+    final char traces[][] = wordTraces;
+    Collections.sort(shortWordList, new Comparator<Integer>()
+    {
+      public int compare(Integer w1, Integer w2)
+      {
+        return getShortWordBucket(traces[w1])-getShortWordBucket(traces[w2]);
+      }
+    });
+    int shortWordBuckets[] = new int[NUM_SHORT_WORD_BUCKETS+1];
+    for (int i = 0; i < shortWordList.size(); i++)
+      shortWordBuckets[getShortWordBucket(wordTraces[shortWordList.get(i)])+1] = i+1;
+    for (int i = 1; i < shortWordBuckets.length; i++)
+      shortWordBuckets[i] = Math.max(shortWordBuckets[i], shortWordBuckets[i-1]);
+    ArrayList<char[]> mediumPrefixList = new ArrayList<char[]>();
+    ArrayList<Integer> mediumPrefixStartList = new ArrayList<Integer>();
+    ArrayList<Integer> mediumPrefixEndList = new ArrayList<Integer>();
+    findPrefixes(MEDIUM_PREFIX_LENGTH, wordTraces, mediumPrefixList, mediumPrefixStartList, mediumPrefixEndList);
+    ArrayList<char[]> longPrefixList = new ArrayList<char[]>();
+    ArrayList<Integer> longPrefixStartList = new ArrayList<Integer>();
+    ArrayList<Integer> longPrefixEndList = new ArrayList<Integer>();
+    findPrefixes(LONG_PREFIX_LENGTH, wordTraces, longPrefixList, longPrefixStartList, longPrefixEndList);
+
+    ArrayList<Integer> completionStartList = new ArrayList<Integer>();
+    ArrayList<Integer> completionEndList = new ArrayList<Integer>();
+    ArrayList<int[]> completionList = new ArrayList<int[]>();
+    findCompletions(wordList, completionStartList, completionEndList, completionList);
+
+    // Lay out the sections.
+
+    int sectionSize[] = new int[NUM_SECTIONS];
+    sectionSize[SECTION_WORD_OFFSETS] = 4*(numWords+1);
+    sectionSize[SECTION_WORD_CHARS] = 2*wordCharCount;
+    sectionSize[SECTION_TRACE_OFFSETS] = 4*(numWords+1);
+    sectionSize[SECTION_TRACE_BYTES] = traceCharCount;
+    sectionSize[SECTION_FREQUENCY] = numWords;
+    sectionSize[SECTION_PREFIX_BYTES] = SHORT_PREFIX_LENGTH*prefixList.size();
+    sectionSize[SECTION_PREFIX_START] = 4*prefixList.size();
+    sectionSize[SECTION_PREFIX_END] = 4*prefixList.size();
+    sectionSize[SECTION_SHORT_WORDS] = 4*shortWordList.size();
+    sectionSize[SECTION_MEDIUM_PREFIX_BYTES] = MEDIUM_PREFIX_LENGTH*mediumPrefixList.size();
+    sectionSize[SECTION_MEDIUM_PREFIX_START] = 4*mediumPrefixList.size();
+    sectionSize[SECTION_MEDIUM_PREFIX_END] = 4*mediumPrefixList.size();
+    sectionSize[SECTION_LONG_PREFIX_BYTES] = LONG_PREFIX_LENGTH*longPrefixList.size();
+    sectionSize[SECTION_LONG_PREFIX_START] = 4*longPrefixList.size();
+    sectionSize[SECTION_LONG_PREFIX_END] = 4*longPrefixList.size();
+    sectionSize[SECTION_KEY_MASKS] = 4*numWords;
+    sectionSize[SECTION_PREFIX_KEY_START] = 4*prefixKeyStart.length;
+    sectionSize[SECTION_SHORT_WORD_BUCKETS] = 4*shortWordBuckets.length;
+    sectionSize[SECTION_VARIANT_START] = 4*variantStart.length;
+    sectionSize[SECTION_VARIANTS] = 4*variants.length;
+    sectionSize[SECTION_TRACE_HASH] = 4*traceHashSize;
+    sectionSize[SECTION_COMPLETION_START] = 4*completionList.size();
+    sectionSize[SECTION_COMPLETION_END] = 4*completionList.size();
+    sectionSize[SECTION_COMPLETIONS] = 4*NUM_COMPLETIONS*completionList.size();
+    int sectionOffset[] = new int[NUM_SECTIONS];
+    int totalSize = HEADER_SIZE;
+    for (int i = 0; i < NUM_SECTIONS; i++)
+    {
+      totalSize = (totalSize+3)&~3;
+      sectionOffset[i] = totalSize;
+      totalSize += sectionSize[i];
+    }
+
+    // Write the data.
+
+    ByteBuffer data = ByteBuffer.allocate(totalSize).order(ByteOrder.LITTLE_ENDIAN);
+    data.putInt(0, MAGIC);
+    data.putInt(4, VERSION);
+    data.putLong(HEADER_STAMP, stamp);
+    data.putInt(HEADER_NUM_WORDS, numWords);
+    data.putInt(HEADER_NUM_PREFIXES, prefixList.size());
+    data.putInt(HEADER_NUM_SHORT_WORDS, shortWordList.size());
+    data.putInt(HEADER_NUM_MEDIUM_PREFIXES, mediumPrefixList.size());
+    data.putInt(HEADER_NUM_LONG_PREFIXES, longPrefixList.size());
+    data.putInt(HEADER_MAX_TRACE_LENGTH, maxTraceLength);
+    data.putInt(HEADER_TRACE_HASH_SIZE, traceHashSize);
+    data.putInt(HEADER_NUM_COMPLETION_RANGES, completionList.size());
+    for (int i = 0; i < NUM_SECTIONS; i++)
+      data.putInt(HEADER_SECTIONS+4*i, sectionOffset[i]);
+    data.putInt(HEADER_SECTIONS+4*NUM_SECTIONS, totalSize);
+    int wordPos = 0, tracePos = 0;
+    for (int i = 0; i < numWords; i++)
+    {
+      data.putInt(sectionOffset[SECTION_WORD_OFFSETS]+4*i, wordPos);
+      data.putInt(sectionOffset[SECTION_TRACE_OFFSETS]+4*i, tracePos);
+      for (char c : words[i])
+        data.putChar(sectionOffset[SECTION_WORD_CHARS]+2*(wordPos++), c);
+      for (char c : wordTraces[i])
+        data.put(sectionOffset[SECTION_TRACE_BYTES]+(tracePos++), (byte) c);
+      data.put(sectionOffset[SECTION_FREQUENCY]+i, (byte) wordList.get(i).frequency);
+      data.putInt(sectionOffset[SECTION_KEY_MASKS]+4*i, getKeyMask(wordTraces[i]));
+    }
+    data.putInt(sectionOffset[SECTION_WORD_OFFSETS]+4*numWords, wordPos);
+    data.putInt(sectionOffset[SECTION_TRACE_OFFSETS]+4*numWords, tracePos);
+    for (int i = 0; i < prefixList.size(); i++)
+    {
+      putBytes(data, sectionOffset[SECTION_PREFIX_BYTES]+SHORT_PREFIX_LENGTH*i, prefixList.get(i));
+      data.putInt(sectionOffset[SECTION_PREFIX_START]+4*i, prefixStartList.get(i));
+      data.putInt(sectionOffset[SECTION_PREFIX_END]+4*i, prefixEndList.get(i));
+    }
+    for (int i = 0; i < shortWordList.size(); i++)
+      data.putInt(sectionOffset[SECTION_SHORT_WORDS]+4*i, shortWordList.get(i));
+    for (int i = 0; i < prefixKeyStart.length; i++)
+      data.putInt(sectionOffset[SECTION_PREFIX_KEY_START]+4*i, prefixKeyStart[i]);
+    for (int i = 0; i < shortWordBuckets.length; i++)
+      data.putInt(sectionOffset[SECTION_SHORT_WORD_BUCKETS]+4*i, shortWordBuckets[i]);
+    for (int i = 0; i < variantStart.length; i++)
+      data.putInt(sectionOffset[SECTION_VARIANT_START]+4*i, variantStart[i]);
+    for (int i = 0; i < variants.length; i++)
+      data.putInt(sectionOffset[SECTION_VARIANTS]+4*i, variants[i]);
+    for (int i = 0; i < traceHashSize; i++)
+      data.putInt(sectionOffset[SECTION_TRACE_HASH]+4*i, traceHash[i]);
+    for (int i = 0; i < completionList.size(); i++)
+    {
+      data.putInt(sectionOffset[SECTION_COMPLETION_START]+4*i, completionStartList.get(i));
+      data.putInt(sectionOffset[SECTION_COMPLETION_END]+4*i, completionEndList.get(i));
+      for (int j = 0; j < NUM_COMPLETIONS; j++)
+        data.putInt(sectionOffset[SECTION_COMPLETIONS]+4*(NUM_COMPLETIONS*i+j), completionList.get(i)[j]);
+    }
+    for (int i = 0; i < mediumPrefixList.size(); i++)
+    {
+      putBytes(data, sectionOffset[SECTION_MEDIUM_PREFIX_BYTES]+MEDIUM_PREFIX_LENGTH*i, mediumPrefixList.get(i));
+      data.putInt(sectionOffset[SECTION_MEDIUM_PREFIX_START]+4*i, mediumPrefixStartList.get(i));
+      data.putInt(sectionOffset[SECTION_MEDIUM_PREFIX_END]+4*i, mediumPrefixEndList.get(i));
+    }
+    for (int i = 0; i < longPrefixList.size(); i++)
+    {
+      putBytes(data, sectionOffset[SECTION_LONG_PREFIX_BYTES]+LONG_PREFIX_LENGTH*i, longPrefixList.get(i));
+      data.putInt(sectionOffset[SECTION_LONG_PREFIX_START]+4*i, longPrefixStartList.get(i));
+      data.putInt(sectionOffset[SECTION_LONG_PREFIX_END]+4*i, longPrefixEndList.get(i));
+    }
+    return data;
+  }
+
+  /**
+   * Get the set of keys a trace contains, with bit 26 for the apostrophe.
+   */
+  static int getKeyMask(char trace[])
+  {
+    int mask = 0;
+    for (char c : trace)
+      mask |= 1<<getSymbol(c);
+    return mask;
+  }
+
+  /**
+   * Get the index of the group a short word is in, from the first key and length of its trace.
+   */
+  static int getShortWordBucket(char trace[])
+  {
+    return getSymbol(trace[0])*SHORT_PREFIX_LENGTH+trace.length;
+  }
+
+  /**
+   * Get the number of slots in the trace hash table, a power of two so that it is between a quarter and half
+   * full.
+   */
+  static int getTraceHashSize(int numTraces)
+  {
+    return 4*Integer.highestOneBit(Math.max(numTraces, 1));
+  }
+
+  static int hashTrace(char trace[], int length)
+  {
+    int hash = 0;
+    for (int i = 0; i < length; i++)
+      hash = 31*hash+trace[i];
+    hash ^= hash>>>16;
+    hash *= 0x85ebca6b;
+    return hash^(hash>>>13);
+  }
+
+  private static int getSymbol(char c)
+  {
+    return (c == '\'' ? 26 : c-'a');
+  }
+
+  private static void putBytes(ByteBuffer data, int offset, char chars[])
+  {
+    for (int i = 0; i < chars.length; i++)
+      data.put(offset+i, (byte) chars[i]);
+  }
+
+  /**
+   * Build the map from accented and other alternate characters to the keys they are entered with.
+   */
+  static HashMap<Integer, Integer> createReplacements()
+  {
+    HashMap<Integer, Integer> replacements = new HashMap<Integer, Integer>();
+    for (HashMap.Entry<Integer, String[]> entry : Flow.alternates.entrySet())
+      for (String c : entry.getValue())
+        if (c.length() == 1)
+          replacements.put(c.codePointAt(0), entry.getKey());
+    return replacements;
+  }
+
+  static char[] createTrace(char word[], Map<Integer, Integer> replacements)
+  {
+    int length = word.length;
+    int j;
+    for (j = 0; j < length; j++)
+    {
+      char c = word[j];
+      if (c != '\'' && !(c >= 'a' && c <= 'z'))
+        break;
+    }
+    if (j == length)
+      return word;
+    if (word[length-1] == '.')
+      length--;
+    char trace[] = new char[length];
+    for (j = 0; j < length; j++)
+    {
+      int c = Character.toLowerCase(word[j]);
+      if (c != '\'' && !(c >= 'a' && c <= 'z'))
+      {
+        if (replacements.containsKey(c))
+          c = replacements.get(c);
+        if (c != '\'' && !(c >= 'a' && c <= 'z'))
+          c = '\'';
+      }
+      trace[j] = (char) c;
+    }
+    return trace;
+  }
+
+  /**
+   * Find prefixes of the specified size that are shared by consecutive words.  Each one covers a single range
+   * of words, so only the start and end of the range are recorded.
+   */
+  private static void findPrefixes(int size, char words[][], ArrayList<char[]> prefixes, ArrayList<Integer> prefixStart, ArrayList<Integer> prefixEnd)
+  {
+    char lastPrefix[] = null;
+    int numWords = words.length;
+    for (int i = 0; i < numWords; i++)
+    {
+      char word[] = words[i];
+      if (word.length >= size)
+      {
+        if (lastPrefix == null || !startsWith(word, lastPrefix))
+        {
+          char prefix[] = substring(word, size);
+          if (i < numWords-1 && startsWith(words[i+1], prefix))
+          {
+            lastPrefix = prefix;
+            prefixes.add(prefix);
+            prefixStart.add(i);
+            prefixEnd.add(i);
+          }
+          else
+            lastPrefix = null;
+        }
+      }
+      else
+        lastPrefix = null;
+      if (lastPrefix != null)
+        prefixEnd.set(prefixEnd.size()-1, i+1);
+    }
+  }
+
+  /**
+   * Find the ranges of more than MIN_COMPLETION_RANGE words that share a prefix, ignoring case, and the most
+   * frequent words in each one, in the order Dictionary.findWordsStartingWith() lists them.  Different prefixes
+   * can cover the same range, so each range is only recorded once.  The ranges are sorted by their start, and
+   * ranges with the same start by decreasing end.
+   */
+  private static void findCompletions(ArrayList<SortedWord> wordList, ArrayList<Integer> rangeStart, ArrayList<Integer> rangeEnd, ArrayList<int[]> completions)
+  {
+    int numWords = wordList.size();
+    TreeMap<Long, int[]> ranges = new TreeMap<Long, int[]>();
+    boolean found = true;
+    for (int length = 1; found; length++)
+    {
+      found = false;
+      int end;
+      for (int start = 0; start < numWords; start = end)
+      {
+        for (end = start+1; end < numWords && sharePrefix(wordList.get(start).word, wordList.get(end).word, length); end++)
+          ;
+        if (end-start <= MIN_COMPLETION_RANGE)
+          continue;
+        found = true;
+        long key = ((long) start<<32)|(numWords-end);
+        if (ranges.containsKey(key))
+          continue;
+
+        // Keep the most frequent words, and the first of those with equal frequency.
+
+        int best[] = new int[NUM_COMPLETIONS];
+        Arrays.fill(best, -1);
+        for (int i = start; i < end; i++)
+        {
+          int frequency = wordList.get(i).frequency;
+          int last = NUM_COMPLETIONS-1;
+          if (best[last] > -1 && frequency <= wordList.get(best[last]).frequency)
+            continue;
+          int insert = 0;
+          while (best[insert] > -1 && frequency <= wordList.get(best[insert]).frequency)
+            insert++;
+          System.arraycopy(best, insert, best, insert+1, last-insert);
+          best[insert] = i;
+        }
+        ranges.put(key, best);
+      }
+    }
+    for (Map.Entry<Long, int[]> entry : ranges.entrySet())
+    {
+      long key = entry.getKey();
+      rangeStart.add((int) (key>>>32));
+      rangeEnd.add(numWords-(int) key);
+      completions.add(entry.getValue());
+    }
+  }
+
+  /**
+   * Get whether two words both have at least a certain length and start with the same characters, ignoring case.
+   */
+  private static boolean sharePrefix(char word1[], char word2[], int length)
+  {
+    if (word1.length < length || word2.length < length)
+      return false;
+    for (int i = 0; i < length; i++)
+      if (Character.toLowerCase(word1[i]) != Character.toLowerCase(word2[i]))
+        return false;
+    return true;
+  }
+
+  private static char[] substring(char word[], int length)
+  {
+    char s[] = new char[length];
+    for (int i = 0; i < length; i++)
+      s[i] = word[i];
+    return s;
+  }
+
+  private static boolean startsWith(char word[], char prefix[])
+  {
+    int length = prefix.length;
+    if (word.length < length)
+      return false;
+    for (int i = 0; i < length; i++)
+    {
+      if (word[i] != prefix[i])
+        return false;
+    }
+    return true;
+  }
+
+  static class SortedWord implements Comparable<SortedWord>
+  {
+    public final char word[];
+    public final short frequency;
+
+    public SortedWord(char word[], short frequency)
+    {
+      this.word = word;
+      this.frequency = frequency;
+    }
+
+    public int compareTo(SortedWord other)
+    {
+      return Dictionary.wordComparator.compare(word, other.word);
+    }
+  }
+}
@@ -0,0 +1,98 @@
+package info.thfr.wolfkeyboard;
+
+/**
+ * Copyright 2019         Thomas Frohwein <11335318+rfht@users.noreply.github.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/**
+ * The most recent touch positions of a trace, which KeyboardView draws behind the finger.  They are kept in a
+ * ring buffer, so adding a position and dropping the old ones doesn't allocate anything once the buffer is big
+ * enough for a full display period.
+ */
+public class DisplayedTrace
+{
+  private int x[];
+  private int y[];
+  private long time[];
+  private int start, size;
+
+  public DisplayedTrace()
+  {
+    x = new int[512];
+    y = new int[512];
+    time = new long[512];
+  }
+
+  public void clear()
+  {
+    start = size = 0;
+  }
+
+  public void add(float x, float y, long time)
+  {
+    if (size == this.x.length)
+    {
+      // The buffer is full, so double its size.  Copy the positions to the start of the new arrays.
+
+      int newX[] = new int[2*size];
+      int newY[] = new int[2*size];
+      long newTime[] = new long[2*size];
+      for (int i = 0; i < size; i++)
+      {
+        int index = (start+i)%size;
+        newX[i] = this.x[index];
+        newY[i] = this.y[index];
+        newTime[i] = this.time[index];
+      }
+      this.x = newX;
+      this.y = newY;
+      this.time = newTime;
+      start = 0;
+    }
+    int index = (start+size)%this.x.length;
+    this.x[index] = (int) x;
+    this.y[index] = (int) y;
+    this.time[index] = time;
+    size++;
+  }
+
+  /**
+   * Remove the positions that were added before a time.
+   */
+  public void removeBefore(long time)
+  {
+    while (size > 0 && this.time[start] < time)
+    {
+      start = (start+1)%x.length;
+      size--;
+    }
+  }
+
+  public int size()
+  {
+    return size;
+  }
+
+  public int getX(int i)
+  {
+    return x[(start+i)%x.length];
+  }
+
+  public int getY(int i)
+  {
+    return y[(start+i)%y.length];
+  }
+}
@@ -30,10 +30,19 @@ import android.view.*;
 import android.view.inputmethod.*;
 import android.widget.*;
 
+import java.io.*;
+
 public class FlowInputMethod extends InputMethodService
 {
   private String lastDictionaryName;
   private Dictionary dictionary;
+  private HandlerThread loaderThread;
+  private Handler loaderHandler, mainHandler;
+  private volatile int dictionaryGeneration;
+  private UserWords userWords = UserWords.EMPTY;
+  private WordHistory wordHistory;
+  private Decoder decoder;
+  private final DictionaryCache dictionaryCache = new DictionaryCache(MAX_CACHED_DICTIONARY_SIZE);
   private KeyboardView keyboardView;
   private CandidatesView candidatesView;
   private TouchListener touchListener;
@@ -42,24 +51,99 @@ public class FlowInputMethod extends InputMethodService
   private AddWordButton addWordButton;
   private View extractView;
   private boolean simpleMode, temporarySimpleMode, passwordMode, pressedArrowKey;
-  private int selectionStart, selectionEnd;
+  private int selectionStart, selectionEnd, composingStart = -1;
   public Vibrator vibrator;
 
+  private static final long MAX_CACHED_DICTIONARY_SIZE = 24*1024*1024;
+  private static final long USER_WORDS_RELOAD_DELAY = 500;
+
   @Override
   public void onCreate()
   {
     super.onCreate();
     vibrator = (Vibrator) getSystemService(Context.VIBRATOR_SERVICE);
+    mainHandler = new Handler();
+    loaderThread = new HandlerThread("DictionaryLoader", android.os.Process.THREAD_PRIORITY_BACKGROUND);
+    loaderThread.start();
+    loaderHandler = new Handler(loaderThread.getLooper());
+    loaderHandler.post(reloadUserWords);
+    loaderHandler.post(loadWordHistory);
+    decoder = new Decoder();
     getContentResolver().registerContentObserver(UserDictionary.Words.CONTENT_URI, true, new ContentObserver(new Handler()) {
       @Override
       public void onChange(boolean selfChange)
       {
-        // The user dictionary has changed, so we'll need to reload it.
+        // The user dictionary has changed, so we'll need to reload it.  Changes often come in bursts,
+        // so wait until they stop before reloading.
 
-        rebuildDictionary();
+        loaderHandler.removeCallbacks(reloadUserWords);
+        loaderHandler.postDelayed(reloadUserWords, USER_WORDS_RELOAD_DELAY);
       }
     });
   }
+
+  private final Runnable reloadUserWords = new Runnable()
+  {
+    public void run()
+    {
+      final UserWords loaded = UserWords.load(FlowInputMethod.this);
+      mainHandler.post(new Runnable()
+      {
+        public void run()
+        {
+          setUserWords(loaded);
+        }
+      });
+    }
+  };
+
+  private final Runnable loadWordHistory = new Runnable()
+  {
+    public void run()
+    {
+      final WordHistory loaded = WordHistory.load(new File(getFilesDir(), "history.log"), loaderHandler);
+      mainHandler.post(new Runnable()
+      {
+        public void run()
+        {
+          wordHistory = loaded;
+          if (dictionary != null)
+            dictionary.setWordHistory(loaded);
+        }
+      });
+    }
+  };
+
+  @Override
+  public void onDestroy()
+  {
+    // Drop any dictionaries still waiting to be loaded, but save the words that haven't been written yet.
+
+    loaderHandler.removeCallbacksAndMessages(null);
+    if (wordHistory != null)
+    {
+      final WordHistory history = wordHistory;
+      loaderHandler.post(new Runnable()
+      {
+        public void run()
+        {
+          history.flush();
+        }
+      });
+    }
+    loaderThread.quitSafely();
+    decoder.quit();
+    super.onDestroy();
+  }
+
+  @Override
+  public void onTrimMemory(int level)
+  {
+    super.onTrimMemory(level);
+    if (level >= TRIM_MEMORY_RUNNING_LOW)
+      dictionaryCache.trim();
+  }
+
   @Override
   public View onCreateInputView()
   {
@@ -117,9 +201,8 @@ public class FlowInputMethod extends InputMethodService
     super.onStartInput(attribute, restarting);
     SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(getBaseContext());
     String dictionaryName = prefs.getString("dictionary", "american");
-    if (dictionary == null || !dictionaryName.equals(lastDictionaryName))
-      dictionary = new Dictionary(this, dictionaryName);
-    lastDictionaryName = dictionaryName;
+    if (!dictionaryName.equals(lastDictionaryName))
+      loadDictionary(dictionaryName);
     int type = getCurrentInputEditorInfo().inputType;
     int typeClass = type&InputType.TYPE_MASK_CLASS;
     int typeVariation = type&InputType.TYPE_MASK_VARIATION;
@@ -184,9 +267,21 @@ public class FlowInputMethod extends InputMethodService
     if (touchListener == null)
       return;
     TouchListener.CandidatesType candidatesType = touchListener.getCandidatesType();
-    boolean jumped = (newSelStart != oldSelStart && newSelStart != oldSelStart+1 && candidatesType != TouchListener.CandidatesType.Trace);
+    boolean committed = (newSelStart != oldSelStart && touchListener.isCommittedSelection(newSelStart));
+    boolean jumped = (newSelStart != oldSelStart && newSelStart != oldSelStart+1 && candidatesType != TouchListener.CandidatesType.Trace && !committed);
     selectionStart = newSelStart;
     selectionEnd = newSelEnd;
+    composingStart = candidatesStart;
+    if (jumped || pressedArrowKey)
+      touchListener.resetPreviousWords();
+
+    // Predictions are for the words before the cursor, so they no longer apply once it has moved somewhere else.
+
+    if (jumped && candidatesType == TouchListener.CandidatesType.Prediction)
+    {
+      touchListener.setCandidates(null, TouchListener.CandidatesType.None);
+      candidatesView.setCandidates(null, false);
+    }
     updateShiftMode();
     if (candidatesEnd != -1 && (newSelStart != candidatesEnd || newSelEnd != candidatesEnd))
       touchListener.selectCandidate(0, true);
@@ -212,6 +307,11 @@ public class FlowInputMethod extends InputMethodService
     return touchListener;
   }
 
+  public Decoder getDecoder()
+  {
+    return decoder;
+  }
+
   public KeyboardView getKeyboardView()
   {
     return keyboardView;
@@ -262,6 +362,15 @@ public class FlowInputMethod extends InputMethodService
     return selectionEnd;
   }
 
+  /**
+   * Get where the cursor will be after committing text of a given length.  The text replaces the composing text
+   * if there is any, and otherwise the selection.
+   */
+  public int getSelectionAfterCommit(int length)
+  {
+    return (composingStart == -1 ? Math.min(selectionStart, selectionEnd) : composingStart)+length;
+  }
+
   public void updateShiftMode()
   {
     if (keyboardView == null || getCurrentInputConnection() == null)
@@ -294,15 +403,118 @@ public class FlowInputMethod extends InputMethodService
 
   public void rebuildDictionary()
   {
-    dictionary = null;
-    touchListener.setDictionary(null);
+    // Keep using the current dictionary until the new one is ready.  If the keyboard isn't showing,
+    // wait until the next call to onStartInput() to load it.
+
     if (isInputViewShown())
     {
       SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(getBaseContext());
-      lastDictionaryName = prefs.getString("dictionary", "american");
-      dictionary = new Dictionary(FlowInputMethod.this, lastDictionaryName);
-      touchListener.setDictionary(dictionary);
+      loadDictionary(prefs.getString("dictionary", "american"));
+    }
+    else
+      lastDictionaryName = null;
+  }
+
+  private void loadDictionary(final String dictionaryName)
+  {
+    // Remember the language we are switching away from, so it can be kept loaded in the background.
+
+    SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(getBaseContext());
+    if (lastDictionaryName != null && !lastDictionaryName.equals(dictionaryName))
+      prefs.edit().putString("previousDictionary", lastDictionaryName).apply();
+    final String previousDictionaryName = prefs.getString("previousDictionary", null);
+    final int generation = ++dictionaryGeneration;
+    lastDictionaryName = dictionaryName;
+    dictionaryCache.setActive(dictionaryName);
+    Dictionary cached = dictionaryCache.get(dictionaryName);
+    if (cached != null)
+    {
+      publishDictionary(cached);
+      prewarmDictionary(previousDictionaryName);
+      return;
     }
+
+    // Build the dictionary on the loader thread, then publish it on the main thread.  If another load
+    // was requested in the meantime, this result is stale and gets discarded.
+
+    loaderHandler.post(new Runnable()
+    {
+      public void run()
+      {
+        if (generation != dictionaryGeneration)
+          return;
+
+        // A prewarm of the same language may have loaded it while this was waiting.
+
+        Dictionary cached = dictionaryCache.get(dictionaryName);
+        if (cached == null)
+        {
+          cached = new Dictionary(FlowInputMethod.this, dictionaryName);
+          dictionaryCache.put(dictionaryName, cached);
+        }
+        final Dictionary loaded = cached;
+        mainHandler.post(new Runnable()
+        {
+          public void run()
+          {
+            if (generation != dictionaryGeneration)
+              return;
+            publishDictionary(loaded);
+            prewarmDictionary(previousDictionaryName);
+          }
+        });
+      }
+    });
+  }
+
+  private void publishDictionary(Dictionary loaded)
+  {
+    loaded.setUserWords(userWords);
+    loaded.setWordHistory(wordHistory);
+    dictionary = loaded;
+    if (touchListener != null)
+      touchListener.setDictionary(loaded);
+  }
+
+  private void setUserWords(UserWords words)
+  {
+    userWords = words;
+    if (dictionary != null)
+      dictionary.setUserWords(words);
+  }
+
+  /**
+   * Add a word that was just added to the user dictionary.  This makes it available immediately, without
+   * waiting for the user dictionary to be reloaded.
+   */
+  public void addUserWord(String word, int frequency)
+  {
+    setUserWords(userWords.withWord(word, frequency));
+  }
+
+  /**
+   * Count a word the user entered, so it can be ranked higher when they enter it again.
+   */
+  public void addToWordHistory(String word)
+  {
+    if (wordHistory != null && !passwordMode)
+      wordHistory.addWord(word);
+  }
+
+  private void prewarmDictionary(final String dictionaryName)
+  {
+    // Load the most recently used other language into the cache so switching back to it is instant.
+
+    if (dictionaryName == null || dictionaryName.equals(lastDictionaryName) || dictionaryCache.contains(dictionaryName))
+      return;
+    loaderHandler.post(new Runnable()
+    {
+      public void run()
+      {
+        if (!dictionaryCache.contains(dictionaryName))
+          dictionaryCache.put(dictionaryName, new Dictionary(FlowInputMethod.this, dictionaryName));
+      }
+    });
   }
 
   public void showDialog(Dialog dlg)
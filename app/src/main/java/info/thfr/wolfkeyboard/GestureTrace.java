@@ -0,0 +1,204 @@
+package info.thfr.wolfkeyboard;
+
+/**
+ * Copyright 2019         Thomas Frohwein <11335318+rfht@users.noreply.github.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import java.util.*;
+
+/**
+ * The trace of the gesture that is being drawn, built up from touch samples.  A new point is started wherever the
+ * finger slows down, which is usually at a corner, and every key it passes near is recorded as a via key of the
+ * current point.  Points that are removed, and their via keys, are reused for later traces, so drawing a trace
+ * doesn't allocate anything once enough of them have been created.  This must only be used on one thread.
+ */
+public class GestureTrace
+{
+  public final ArrayList<TracePoint> points;
+  public final ArrayList<TracePoint> unusedPoints;
+  public final DisplayedTrace displayed;
+  private final ArrayList<TracedKey> unusedKeys;
+  private final float sampleDistances[];
+  private final float pointDistances[];
+  private float lastx, lasty;
+  private float minSpeed, maxSpeedSinceMin;
+  private long lastTime;
+  private int numFinalized;
+
+  private static final char traceableKeys[] = "abcdefghijklmnopqrstuvwxyz\'".toCharArray();
+  private static final long displayLength = 1500;
+
+  public GestureTrace()
+  {
+    points = new ArrayList<TracePoint>();
+    unusedPoints = new ArrayList<TracePoint>();
+    unusedKeys = new ArrayList<TracedKey>();
+    displayed = new DisplayedTrace();
+    sampleDistances = new float[27];
+    pointDistances = new float[27];
+  }
+
+  /**
+   * Start a new trace where the finger touched down.  The points of the previous one are kept for reuse.
+   */
+  public void start(float x, float y, long time)
+  {
+    lastx = x;
+    lasty = y;
+    lastTime = time;
+    numFinalized = 0;
+    for (int i = 0; i < points.size(); i++)
+      unusedPoints.add(points.get(i));
+    points.clear();
+    displayed.clear();
+    displayed.add(x, y, time);
+  }
+
+  /**
+   * Add a touch sample to the trace.  This returns true if it finalized another point, which means the points
+   * before it will not change any more.
+   */
+  public boolean addSample(float x, float y, long time, KeyDistanceField field, float keySpacing)
+  {
+    boolean finalized = false;
+    float dx = x-lastx;
+    float dy = y-lasty;
+    float speed = (float)Math.sqrt(dx*dx+dy*dy)/Math.max(1, time-lastTime);
+    if (points.size() == 0)
+    {
+      minSpeed = maxSpeedSinceMin = speed;
+      points.add(obtainPoint(lastx, lasty));
+    }
+    TracePoint current = points.get(points.size()-1);
+    TracePoint previous = (points.size() == 1 ? current : points.get(points.size()-2));
+    float scale = 1.0f/(keySpacing*keySpacing);
+    float distances2[] = sampleDistances;
+    int nearKeys = field.findKeyDistances(x, y, distances2);
+    if ((minSpeed < 0.5f*maxSpeedSinceMin && speed < 0.5f*maxSpeedSinceMin) || points.size() == 1)
+    {
+      previous = current;
+      current = obtainPoint(x, y);
+      points.add(current);
+      for (int j = 0; j < distances2.length; j++)
+        current.keyDistances[j] = Math.min(current.keyDistances[j], distances2[j]);
+      minSpeed = maxSpeedSinceMin = speed;
+      TracePoint p = points.get(numFinalized);
+      if (scale*p.distance2(previous) >= 0.25f || points.size() == 1)
+      {
+        int first = numFinalized;
+        int last = points.size()-2;
+        if (last > first+1)
+        {
+          float sumx = p.x;
+          float sumy = p.y;
+          for (int i = first+1; i < last; i++)
+          {
+            TracePoint p2 = points.get(i);
+            p.mergePoint(p2);
+            sumx += p2.x;
+            sumy += p2.y;
+          }
+          p.x = sumx/(last-first);
+          p.y = sumy/(last-first);
+          for (int i = last-1; i > first; i--)
+            unusedPoints.add(points.remove(i));
+        }
+        numFinalized++;
+        finalized = true;
+      }
+    }
+    else if (speed < minSpeed)
+    {
+      current.x = x;
+      current.y = y;
+      previous.addViaKeys(current.viaKeyList);
+      current.clearViaKeys();
+      minSpeed = maxSpeedSinceMin = speed;
+    }
+    else if (speed > maxSpeedSinceMin)
+      maxSpeedSinceMin = speed;
+    for (; nearKeys != 0; nearKeys &= nearKeys-1)
+    {
+      int j = Integer.numberOfTrailingZeros(nearKeys);
+      if (distances2[j] <= 0.5f)
+        current.addViaKey(traceableKeys[j], distances2[j], time);
+    }
+    displayed.removeBefore(time-displayLength);
+    displayed.add(x, y, time);
+    lastx = x;
+    lasty = y;
+    lastTime = time;
+    return finalized;
+  }
+
+  /**
+   * If no point has been added yet, add one where the trace started.
+   */
+  public void addStartPoint()
+  {
+    if (points.size() == 0)
+      points.add(obtainPoint(lastx, lasty));
+  }
+
+  /**
+   * Get the number of points at the start of the trace that will not be merged with later ones.
+   */
+  public int getNumFinalized()
+  {
+    return numFinalized;
+  }
+
+  /**
+   * Copy the first Dictionary.PREFIX_TRACE_LENGTH points to a Trace, processed the same way the whole trace will be
+   * once it is finished, so they can be matched while the user is still drawing.  The point after them must have
+   * been finalized too, since it determines the weight of the last one.
+   */
+  public void copyStart(Trace start, KeyDistanceField field)
+  {
+    start.clear();
+    for (int i = 0; i < Dictionary.PREFIX_TRACE_LENGTH; i++)
+    {
+      TracePoint p = points.get(i);
+      float weight = (i == 0 ? 1.0f : TraceSimplifier.getWeight(TraceSimplifier.getTurnCosine(points.get(i-1), p, points.get(i+1))));
+      field.findKeyDistances(p.x, p.y, pointDistances);
+      start.addPoint(p.x, p.y, weight, pointDistances, p.viaKeyList);
+    }
+  }
+
+  /**
+   * Copy the positions, weights and via keys of all the points to a Trace, since the points will be reused for
+   * the next trace.
+   */
+  public void copyTo(Trace trace, KeyDistanceField field)
+  {
+    trace.clear();
+    for (int i = 0; i < points.size(); i++)
+    {
+      TracePoint point = points.get(i);
+      field.findKeyDistances(point.x, point.y, pointDistances);
+      trace.addPoint(point.x, point.y, point.weight, pointDistances, point.viaKeyList);
+    }
+  }
+
+  private TracePoint obtainPoint(float x, float y)
+  {
+    if (unusedPoints.isEmpty())
+      return new TracePoint(x, y, unusedKeys);
+    TracePoint point = unusedPoints.remove(unusedPoints.size()-1);
+    point.reset(x, y);
+    return point;
+  }
+}
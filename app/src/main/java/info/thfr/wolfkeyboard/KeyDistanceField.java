@@ -0,0 +1,142 @@
+package info.thfr.wolfkeyboard;
+
+/**
+ * Copyright 2019         Thomas Frohwein <11335318+rfht@users.noreply.github.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import java.util.*;
+
+/**
+ * This class finds the distance from a point to each of the 27 keys that can be traced, measured from the edge of
+ * the key in units of the key spacing.  The distances are computed once for the corners of a grid covering the
+ * keyboard, and interpolated between them, so looking them up for a touch sample involves no square roots.  Each
+ * cell also records which keys are close enough to be via keys anywhere in it.
+ */
+public class KeyDistanceField
+{
+  private final float keyX[];
+  private final float keyY[];
+  private final boolean hasKey[];
+  private final float scale;
+  private final float step;
+  private final int numColumns, numRows;
+  private final float distances[];
+  private final int nearKeys[];
+
+  static final int CELLS_PER_KEY = 6;
+  static final float VIA_KEY_DISTANCE = 0.5f;
+
+  /**
+   * Create the field for a keyboard layout.  keyX and keyY are the positions of the keys, slideCharIndex maps
+   * each key to the index of the character it types (or -1), and width and height are the size of the view.
+   */
+  public KeyDistanceField(float keyX[], float keyY[], int slideCharIndex[], float spacing, int width, int height)
+  {
+    this.keyX = new float[27];
+    this.keyY = new float[27];
+    hasKey = new boolean[27];
+    for (int i = 0; i < slideCharIndex.length; i++)
+      if (slideCharIndex[i] > -1)
+      {
+        this.keyX[slideCharIndex[i]] = keyX[i];
+        this.keyY[slideCharIndex[i]] = keyY[i];
+        hasKey[slideCharIndex[i]] = true;
+      }
+    scale = 1.0f/(spacing*spacing);
+    step = spacing/CELLS_PER_KEY;
+    numColumns = (int) Math.ceil(width/step)+1;
+    numRows = (int) Math.ceil(height/step)+1;
+
+    // Compute the exact distances at the corners of the cells.
+
+    distances = new float[numColumns*numRows*27];
+    for (int row = 0; row < numRows; row++)
+      for (int column = 0; column < numColumns; column++)
+        findExactKeyDistances(column*step, row*step, distances, (row*numColumns+column)*27);
+
+    // A key is a via key candidate for a cell if it is close enough at any corner.  The interpolated distance
+    // can't be less than the smallest one at the corners, so this includes every key that can be close enough.
+
+    nearKeys = new int[(numColumns-1)*(numRows-1)];
+    for (int row = 0; row < numRows-1; row++)
+      for (int column = 0; column < numColumns-1; column++)
+      {
+        int corner = (row*numColumns+column)*27;
+        int mask = 0;
+        for (int key = 0; key < 27; key++)
+          if (distances[corner+key] <= VIA_KEY_DISTANCE || distances[corner+27+key] <= VIA_KEY_DISTANCE ||
+              distances[corner+27*numColumns+key] <= VIA_KEY_DISTANCE || distances[corner+27*numColumns+27+key] <= VIA_KEY_DISTANCE)
+            mask |= 1<<key;
+        nearKeys[row*(numColumns-1)+column] = mask;
+      }
+  }
+
+  /**
+   * Find the distance from a point to every key.  Keys that are missing from the layout get Float.MAX_VALUE.
+   * The return value has a bit set for every key that might be within VIA_KEY_DISTANCE.
+   */
+  public int findKeyDistances(float x, float y, float result[])
+  {
+    float gridX = x/step;
+    float gridY = y/step;
+    int column = (int) gridX;
+    int row = (int) gridY;
+    if (!(gridX >= 0 && gridY >= 0 && column < numColumns-1 && row < numRows-1))
+    {
+      // The point is outside the keyboard, so compute the distances directly.
+
+      findExactKeyDistances(x, y, result, 0);
+      int mask = 0;
+      for (int key = 0; key < 27; key++)
+        if (result[key] <= VIA_KEY_DISTANCE)
+          mask |= 1<<key;
+      return mask;
+    }
+    float fx = gridX-column;
+    float fy = gridY-row;
+    float w00 = (1-fx)*(1-fy);
+    float w01 = fx*(1-fy);
+    float w10 = (1-fx)*fy;
+    float w11 = fx*fy;
+    int corner00 = (row*numColumns+column)*27;
+    int corner01 = corner00+27;
+    int corner10 = corner00+27*numColumns;
+    int corner11 = corner10+27;
+    for (int key = 0; key < 27; key++)
+    {
+      if (hasKey[key])
+        result[key] = w00*distances[corner00+key]+w01*distances[corner01+key]+w10*distances[corner10+key]+w11*distances[corner11+key];
+      else
+        result[key] = Float.MAX_VALUE;
+    }
+    return nearKeys[row*(numColumns-1)+column];
+  }
+
+  /**
+   * Compute the distance from a point to every key without using the grid.
+   */
+  public void findExactKeyDistances(float x, float y, float result[], int offset)
+  {
+    Arrays.fill(result, offset, offset+27, Float.MAX_VALUE);
+    for (int key = 0; key < 27; key++)
+      if (hasKey[key])
+      {
+        float dx = keyX[key]-x;
+        float dy = keyY[key]-y;
+        result[offset+key] = Math.max(0.0f, (float)Math.sqrt(scale*(dx*dx+dy*dy))-0.5f);
+      }
+  }
+}
@@ -35,9 +35,11 @@ public class KeyboardView extends View
   private final KeyboardLayout baseKeyboard, shiftKeyboard, altKeyboard, altShiftKeyboard, emojiKeyboard;
   private KeyboardLayout currentKeyboard, secondaryKeyboard;
   private Point keyPositions[];
+  private final HashMap<KeyboardLayout, KeyDistanceField> keyDistanceFields;
   private int spacing, lastWidth, lastHeight, lastPosition;
   private ArrayList<Point> markers;
-  private List<Point> trace;
+  private DisplayedTrace trace;
+  private final Paint drawPaint;
   private ModifierMode shiftMode, altMode;
   private Path spacePath, enterPath, deletePath, forwardDeletePath, shiftPath, voicePath1, voicePath2, autoPath;
   private Bitmap overlay;
@@ -68,10 +70,13 @@ public class KeyboardView extends View
     currentKeyboard = baseKeyboard;
     secondaryKeyboard = altKeyboard;
     keyPositions = new Point[baseKeyboard.keys.length];
+    keyDistanceFields = new HashMap<KeyboardLayout, KeyDistanceField>();
     needToCreateBackground = true;
     shiftMode = ModifierMode.UP;
     altMode = ModifierMode.UP;
     handler = new Handler();
+    drawPaint = new Paint();
+    drawPaint.setAntiAlias(true);
   }
 
   public KeyboardLayout getKeyboard()
@@ -94,6 +99,28 @@ public class KeyboardView extends View
     return keyPositions;
   }
 
+  /**
+   * Get the field for finding the distances to the keys of a layout at their current positions.  It is created
+   * the first time it is needed after the keys have been laid out.
+   */
+  public KeyDistanceField getKeyDistanceField(KeyboardLayout keyboard)
+  {
+    KeyDistanceField field = keyDistanceFields.get(keyboard);
+    if (field == null)
+    {
+      float keyX[] = new float[keyPositions.length];
+      float keyY[] = new float[keyPositions.length];
+      for (int i = 0; i < keyPositions.length; i++)
+      {
+        keyX[i] = keyPositions[i].x;
+        keyY[i] = keyPositions[i].y;
+      }
+      field = new KeyDistanceField(keyX, keyY, keyboard.slideCharIndex, spacing, lastWidth, lastHeight);
+      keyDistanceFields.put(keyboard, field);
+    }
+    return field;
+  }
+
   public int getKeySpacing()
   {
     return spacing;
@@ -415,6 +442,7 @@ public class KeyboardView extends View
     lastWidth = width;
     lastHeight = height;
     lastPosition = keyboardPosition;
+    keyDistanceFields.clear();
   }
 
   public void setMarkers(ArrayList<Point> markers)
@@ -422,7 +450,7 @@ public class KeyboardView extends View
     this.markers = markers;
   }
 
-  public void setTrace(List<Point> trace)
+  public void setTrace(DisplayedTrace trace)
   {
     this.trace = trace;
     invalidate();
@@ -557,19 +585,16 @@ public class KeyboardView extends View
       return;
     if (needToCreateBackground)
       createBackground(getMeasuredWidth(), getMeasuredHeight());
-    Paint paint = new Paint();
-    paint.setAntiAlias(true);
+
+    // This is called for every touch event while a trace is being drawn, so reuse the same Paint.
+
+    Paint paint = drawPaint;
     if (trace != null)
     {
       paint.setColor(Color.argb(255, 255, 0, 0));
       paint.setStrokeWidth(3*getResources().getDisplayMetrics().density);
-      Point prev = null;
-      for (Point p : trace)
-      {
-        if (prev != null)
-          canvas.drawLine(prev.x, prev.y, p.x, p.y, paint);
-        prev = p;
-      }
+      for (int i = 1; i < trace.size(); i++)
+        canvas.drawLine(trace.getX(i-1), trace.getY(i-1), trace.getX(i), trace.getY(i), paint);
     }
     if (markers != null)
     {
@@ -0,0 +1,535 @@
+package info.thfr.wolfkeyboard;
+
+/**
+ * Copyright 2019         Thomas Frohwein <11335318+rfht@users.noreply.github.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import android.content.*;
+import android.util.*;
+
+import java.io.*;
+import java.nio.*;
+import java.util.*;
+
+/**
+ * A bigram and trigram model of which words follow which, used to rerank the guesses for a trace by the words
+ * before it.  It is compiled from an optional raw resource named after the dictionary with "_ngrams" appended.
+ * Each line of it has a count followed by two or three words, separated by whitespace.  Words are compared
+ * ignoring case.
+ *
+ * Like a dictionary, the compiled form is memory mapped and used in place.  It has a hash table of the words,
+ * and sorted arrays of bigrams and trigrams packed into longs.  For each n-gram it stores a boost from 0 to 255
+ * that is the probability of its last word after the others, on a log scale: 255 means certain, and each
+ * halving of the probability subtracts BOOST_PER_HALVING.
+ */
+public class LanguageModel
+{
+  static final int MAGIC = 0x4d4c4657; // "WFLM"
+  static final int VERSION = 1;
+
+  // Section indices.
+
+  static final int SECTION_WORD_OFFSETS = 0;
+  static final int SECTION_WORD_CHARS = 1;
+  static final int SECTION_WORD_HASH = 2;
+  static final int SECTION_BIGRAM_KEYS = 3;
+  static final int SECTION_BIGRAM_BOOSTS = 4;
+  static final int SECTION_TRIGRAM_KEYS = 5;
+  static final int SECTION_TRIGRAM_BOOSTS = 6;
+  static final int NUM_SECTIONS = 7;
+
+  // Header layout: magic, version, source stamp (long), word count, bigram count, trigram count, word hash
+  // table size, section offsets, total size.
+
+  static final int HEADER_STAMP = 8;
+  static final int HEADER_NUM_WORDS = 16;
+  static final int HEADER_NUM_BIGRAMS = 20;
+  static final int HEADER_NUM_TRIGRAMS = 24;
+  static final int HEADER_WORD_HASH_SIZE = 28;
+  static final int HEADER_SECTIONS = 32;
+  static final int HEADER_SIZE = HEADER_SECTIONS+4*NUM_SECTIONS+4;
+
+  // Each word in an n-gram is packed into WORD_BITS of a long.
+
+  static final int WORD_BITS = 21;
+  static final int MAX_WORDS = 1<<WORD_BITS;
+  static final int BOOST_PER_HALVING = 32;
+
+  public static final LanguageModel EMPTY = new LanguageModel(compile(new ArrayList<String[]>(), new ArrayList<Integer>(), 0));
+
+  final int numWords;
+  final int numBigrams;
+  final int numTrigrams;
+  final int wordHashSize;
+  final IntBuffer wordOffsets;
+  final CharBuffer wordChars;
+  final IntBuffer wordHash;
+  final LongBuffer bigramKeys;
+  final ByteBuffer bigramBoosts;
+  final LongBuffer trigramKeys;
+  final ByteBuffer trigramBoosts;
+  final int dataSize;
+
+  LanguageModel(ByteBuffer data)
+  {
+    dataSize = data.capacity();
+    numWords = data.getInt(HEADER_NUM_WORDS);
+    numBigrams = data.getInt(HEADER_NUM_BIGRAMS);
+    numTrigrams = data.getInt(HEADER_NUM_TRIGRAMS);
+    wordHashSize = data.getInt(HEADER_WORD_HASH_SIZE);
+    wordOffsets = section(data, SECTION_WORD_OFFSETS, 4*(numWords+1)).asIntBuffer();
+    wordChars = section(data, SECTION_WORD_CHARS, 2*wordOffsets.get(numWords)).asCharBuffer();
+    wordHash = section(data, SECTION_WORD_HASH, 4*wordHashSize).asIntBuffer();
+    bigramKeys = section(data, SECTION_BIGRAM_KEYS, 8*numBigrams).asLongBuffer();
+    bigramBoosts = section(data, SECTION_BIGRAM_BOOSTS, numBigrams);
+    trigramKeys = section(data, SECTION_TRIGRAM_KEYS, 8*numTrigrams).asLongBuffer();
+    trigramBoosts = section(data, SECTION_TRIGRAM_BOOSTS, numTrigrams);
+  }
+
+  /**
+   * Load the model for a dictionary.  If an up to date compiled file exists, it is memory mapped.  If there is no
+   * n-gram resource for the dictionary, this returns an empty model.
+   */
+  public static LanguageModel open(Context context, String dictionary)
+  {
+    int rawId = context.getResources().getIdentifier(dictionary+"_ngrams", "raw", context.getPackageName());
+    if (rawId == 0)
+      return EMPTY;
+    long stamp = new File(context.getPackageCodePath()).lastModified();
+    File file = new File(new File(context.getNoBackupFilesDir(), "dictionaries"), dictionary+".lm");
+    try
+    {
+      if (file.exists())
+      {
+        ByteBuffer data = DictionaryCompiler.map(file);
+        if (isValid(data, stamp))
+          return new LanguageModel(data);
+      }
+      Reader in = new InputStreamReader(context.getResources().openRawResource(rawId), "UTF-8");
+      try
+      {
+        return new LanguageModel(DictionaryCompiler.save(file, compile(in, stamp)));
+      }
+      finally
+      {
+        in.close();
+      }
+    }
+    catch (IOException ex)
+    {
+      Log.d("Flow", "Exception loading language model", ex);
+      return EMPTY;
+    }
+  }
+
+  private static boolean isValid(ByteBuffer data, long stamp)
+  {
+    if (data.capacity() < HEADER_SIZE)
+      return false;
+    return (data.getInt(0) == MAGIC && data.getInt(4) == VERSION && data.getLong(HEADER_STAMP) == stamp &&
+        data.getInt(HEADER_SECTIONS+4*NUM_SECTIONS) == data.capacity());
+  }
+
+  private static ByteBuffer section(ByteBuffer data, int section, int size)
+  {
+    ByteBuffer view = data.duplicate();
+    int offset = data.getInt(HEADER_SECTIONS+4*section);
+    view.limit(offset+size);
+    view.position(offset);
+    return view.slice().order(ByteOrder.LITTLE_ENDIAN);
+  }
+
+  /**
+   * Find the index of a word in the model, ignoring case, or -1 if it isn't in it.
+   */
+  public int findWord(char word[], int length)
+  {
+    int mask = wordHashSize-1;
+    for (int slot = hashWord(word, length)&mask; ; slot = (slot+1)&mask)
+    {
+      int index = wordHash.get(slot);
+      if (index == -1)
+        return -1;
+      int start = wordOffsets.get(index);
+      if (wordOffsets.get(index+1)-start != length)
+        continue;
+      int i;
+      for (i = 0; i < length && wordChars.get(start+i) == Character.toLowerCase(word[i]); i++)
+        ;
+      if (i == length)
+        return index;
+    }
+  }
+
+  public int findWord(String word)
+  {
+    return (word == null ? -1 : findWord(word.toCharArray(), word.length()));
+  }
+
+  /**
+   * Get the boost for a word following one or two others, identified by their indices in the model.  This uses
+   * the trigram if there is one, and otherwise the bigram.  Returns 0 if neither is in the model.
+   */
+  public int getBoost(int previous2, int previous, int word)
+  {
+    if (previous < 0 || word < 0)
+      return 0;
+    if (previous2 >= 0)
+    {
+      int trigram = find(trigramKeys, numTrigrams, getKey(previous2, previous, word));
+      if (trigram > -1)
+        return trigramBoosts.get(trigram)&255;
+    }
+    int bigram = find(bigramKeys, numBigrams, getKey(previous, word));
+    return (bigram > -1 ? bigramBoosts.get(bigram)&255 : 0);
+  }
+
+  /**
+   * Get the word with an index in the model, in lower case.
+   */
+  public String getWord(int index)
+  {
+    int start = wordOffsets.get(index);
+    char word[] = new char[wordOffsets.get(index+1)-start];
+    for (int i = 0; i < word.length; i++)
+      word[i] = wordChars.get(start+i);
+    return new String(word);
+  }
+
+  /**
+   * Find the words most likely to follow one or two others, identified by their indices in the model.  Each word
+   * is ranked by the same boost getBoost() would give it.  This fills in the indices of up to words.length of
+   * them, best first, and returns how many there are.
+   */
+  public int findSuccessors(int previous2, int previous, int words[])
+  {
+    if (previous < 0 || words.length == 0)
+      return 0;
+    int boosts[] = new int[words.length];
+    int count = 0;
+
+    // The n-grams are sorted by their words, so the ones that start with the previous words form a range.  Take
+    // the trigrams first, then the bigrams whose word has no trigram.
+
+    if (previous2 >= 0)
+    {
+      int end = findFirst(trigramKeys, numTrigrams, getKey(previous2, previous+1, 0));
+      for (int i = findFirst(trigramKeys, numTrigrams, getKey(previous2, previous, 0)); i < end; i++)
+        count = addSuccessor(words, boosts, count, (int) (trigramKeys.get(i)&(MAX_WORDS-1)), trigramBoosts.get(i)&255);
+    }
+    int end = findFirst(bigramKeys, numBigrams, getKey(previous+1, 0));
+    for (int i = findFirst(bigramKeys, numBigrams, getKey(previous, 0)); i < end; i++)
+    {
+      int boost = bigramBoosts.get(i)&255;
+      if (count == words.length && boost <= boosts[count-1])
+        continue;
+      int word = (int) (bigramKeys.get(i)&(MAX_WORDS-1));
+      if (previous2 < 0 || find(trigramKeys, numTrigrams, getKey(previous2, previous, word)) == -1)
+        count = addSuccessor(words, boosts, count, word, boost);
+    }
+    return count;
+  }
+
+  private static int addSuccessor(int words[], int boosts[], int count, int word, int boost)
+  {
+    if (count == words.length && boost <= boosts[count-1])
+      return count;
+    int i = Math.min(count, words.length-1);
+    for (; i > 0 && boosts[i-1] < boost; i--)
+    {
+      words[i] = words[i-1];
+      boosts[i] = boosts[i-1];
+    }
+    words[i] = word;
+    boosts[i] = boost;
+    return Math.min(count+1, words.length);
+  }
+
+  /**
+   * Find the index of the first key that is not less than a value.
+   */
+  private static int findFirst(LongBuffer keys, int count, long key)
+  {
+    int start = 0, end = count;
+    while (start < end)
+    {
+      int mid = (start+end)>>>1;
+      if (keys.get(mid) < key)
+        start = mid+1;
+      else
+        end = mid;
+    }
+    return start;
+  }
+
+  private static int find(LongBuffer keys, int count, long key)
+  {
+    int start = 0, end = count;
+    while (start < end)
+    {
+      int mid = (start+end)>>>1;
+      long midKey = keys.get(mid);
+      if (midKey < key)
+        start = mid+1;
+      else if (midKey > key)
+        end = mid;
+      else
+        return mid;
+    }
+    return -1;
+  }
+
+  static long getKey(int previous, int word)
+  {
+    return ((long) previous<<WORD_BITS)|word;
+  }
+
+  static long getKey(int previous2, int previous, int word)
+  {
+    return ((long) previous2<<(2*WORD_BITS))|((long) previous<<WORD_BITS)|word;
+  }
+
+  static int hashWord(char word[], int length)
+  {
+    int hash = 0;
+    for (int i = 0; i < length; i++)
+      hash = 31*hash+Character.toLowerCase(word[i]);
+    hash ^= hash>>>16;
+    hash *= 0x85ebca6b;
+    return hash^(hash>>>13);
+  }
+
+  /**
+   * Find the last two words in some text, for looking up the word that comes after it.  The older word is first.
+   * Either one is null if the text doesn't have it.  Words before punctuation, such as the end of a sentence,
+   * aren't used.
+   */
+  public static String[] getPreviousWords(CharSequence text)
+  {
+    String words[] = new String[2];
+    if (text == null)
+      return words;
+    int end = text.length();
+    for (int w = 1; w >= 0; w--)
+    {
+      while (end > 0 && Character.isWhitespace(text.charAt(end-1)))
+        end--;
+      int start = end;
+      while (start > 0 && isWordChar(text.charAt(start-1)))
+        start--;
+      if (start == end)
+        break;
+      words[w] = text.subSequence(start, end).toString();
+      if (start > 0 && !Character.isWhitespace(text.charAt(start-1)))
+        break;
+      end = start;
+    }
+    return words;
+  }
+
+  private static boolean isWordChar(char c)
+  {
+    return Character.isLetter(c) || c == '\'' || c == '-';
+  }
+
+  /**
+   * Parse the n-gram resource and compile it.  Lines that can't be parsed are skipped.
+   */
+  static ByteBuffer compile(Reader source, long stamp) throws IOException
+  {
+    ArrayList<String[]> ngrams = new ArrayList<String[]>();
+    ArrayList<Integer> counts = new ArrayList<Integer>();
+    BufferedReader in = new BufferedReader(source);
+    String line;
+    while ((line = in.readLine()) != null)
+    {
+      String fields[] = line.trim().split("\\s+");
+      if (fields.length < 3 || fields.length > 4)
+        continue;
+      try
+      {
+        int count = Integer.parseInt(fields[0]);
+        if (count > 0)
+        {
+          counts.add(count);
+          ngrams.add(Arrays.copyOfRange(fields, 1, fields.length));
+        }
+      }
+      catch (NumberFormatException ex)
+      {
+        // Skip this line.
+      }
+    }
+    return compile(ngrams, counts, stamp);
+  }
+
+  static ByteBuffer compile(ArrayList<String[]> ngrams, ArrayList<Integer> counts, long stamp)
+  {
+    // Collect the words and assign each one an index.
+
+    HashMap<String, Integer> wordIndex = new HashMap<String, Integer>();
+    ArrayList<String> words = new ArrayList<String>();
+    ArrayList<int[]> indices = new ArrayList<int[]>();
+    for (String ngram[] : ngrams)
+    {
+      int index[] = new int[ngram.length];
+      for (int i = 0; i < ngram.length; i++)
+      {
+        String word = ngram[i].toLowerCase();
+        Integer existing = wordIndex.get(word);
+        if (existing == null && words.size() < MAX_WORDS)
+        {
+          existing = words.size();
+          wordIndex.put(word, existing);
+          words.add(word);
+        }
+        index[i] = (existing == null ? -1 : existing);
+      }
+      indices.add(index);
+    }
+
+    // Add up the counts for each context, so the probabilities can be computed from them.
+
+    HashMap<Long, Long> bigramCounts = new HashMap<Long, Long>();
+    HashMap<Long, Long> trigramCounts = new HashMap<Long, Long>();
+    HashMap<Long, Long> bigramContextCounts = new HashMap<Long, Long>();
+    HashMap<Long, Long> trigramContextCounts = new HashMap<Long, Long>();
+    for (int i = 0; i < indices.size(); i++)
+    {
+      int index[] = indices.get(i);
+      boolean valid = true;
+      for (int word : index)
+        valid &= (word > -1);
+      if (!valid)
+        continue;
+      long count = counts.get(i);
+      if (index.length == 2)
+      {
+        addCount(bigramCounts, getKey(index[0], index[1]), count);
+        addCount(bigramContextCounts, (long) index[0], count);
+      }
+      else
+      {
+        addCount(trigramCounts, getKey(index[0], index[1], index[2]), count);
+        addCount(trigramContextCounts, getKey(index[0], index[1]), count);
+      }
+    }
+    TreeMap<Long, Integer> bigrams = new TreeMap<Long, Integer>();
+    for (Map.Entry<Long, Long> entry : bigramCounts.entrySet())
+    {
+      long key = entry.getKey();
+      int boost = getBoost(entry.getValue(), bigramContextCounts.get(key>>>WORD_BITS));
+      if (boost > 0)
+        bigrams.put(key, boost);
+    }
+    TreeMap<Long, Integer> trigrams = new TreeMap<Long, Integer>();
+    for (Map.Entry<Long, Long> entry : trigramCounts.entrySet())
+    {
+      long key = entry.getKey();
+      int boost = getBoost(entry.getValue(), trigramContextCounts.get(key>>>WORD_BITS));
+      if (boost > 0)
+        trigrams.put(key, boost);
+    }
+
+    // Build a hash table of the words.  Collisions go to the next free slot.
+
+    int numWords = words.size();
+    int wordHashSize = DictionaryCompiler.getTraceHashSize(numWords);
+    int wordHash[] = new int[wordHashSize];
+    Arrays.fill(wordHash, -1);
+    int wordCharCount = 0;
+    for (int i = 0; i < numWords; i++)
+    {
+      char word[] = words.get(i).toCharArray();
+      int slot = hashWord(word, word.length)&(wordHashSize-1);
+      while (wordHash[slot] != -1)
+        slot = (slot+1)&(wordHashSize-1);
+      wordHash[slot] = i;
+      wordCharCount += word.length;
+    }
+
+    // Lay out the sections.  The n-gram keys are longs, so every section starts on an 8 byte boundary.
+
+    int sectionSize[] = new int[NUM_SECTIONS];
+    sectionSize[SECTION_WORD_OFFSETS] = 4*(numWords+1);
+    sectionSize[SECTION_WORD_CHARS] = 2*wordCharCount;
+    sectionSize[SECTION_WORD_HASH] = 4*wordHashSize;
+    sectionSize[SECTION_BIGRAM_KEYS] = 8*bigrams.size();
+    sectionSize[SECTION_BIGRAM_BOOSTS] = bigrams.size();
+    sectionSize[SECTION_TRIGRAM_KEYS] = 8*trigrams.size();
+    sectionSize[SECTION_TRIGRAM_BOOSTS] = trigrams.size();
+    int sectionOffset[] = new int[NUM_SECTIONS];
+    int totalSize = HEADER_SIZE;
+    for (int i = 0; i < NUM_SECTIONS; i++)
+    {
+      totalSize = (totalSize+7)&~7;
+      sectionOffset[i] = totalSize;
+      totalSize += sectionSize[i];
+    }
+
+    // Write the data.
+
+    ByteBuffer data = ByteBuffer.allocate(totalSize).order(ByteOrder.LITTLE_ENDIAN);
+    data.putInt(0, MAGIC);
+    data.putInt(4, VERSION);
+    data.putLong(HEADER_STAMP, stamp);
+    data.putInt(HEADER_NUM_WORDS, numWords);
+    data.putInt(HEADER_NUM_BIGRAMS, bigrams.size());
+    data.putInt(HEADER_NUM_TRIGRAMS, trigrams.size());
+    data.putInt(HEADER_WORD_HASH_SIZE, wordHashSize);
+    for (int i = 0; i < NUM_SECTIONS; i++)
+      data.putInt(HEADER_SECTIONS+4*i, sectionOffset[i]);
+    data.putInt(HEADER_SECTIONS+4*NUM_SECTIONS, totalSize);
+    int wordPos = 0;
+    for (int i = 0; i < numWords; i++)
+    {
+      data.putInt(sectionOffset[SECTION_WORD_OFFSETS]+4*i, wordPos);
+      for (char c : words.get(i).toCharArray())
+        data.putChar(sectionOffset[SECTION_WORD_CHARS]+2*(wordPos++), c);
+    }
+    data.putInt(sectionOffset[SECTION_WORD_OFFSETS]+4*numWords, wordPos);
+    for (int i = 0; i < wordHashSize; i++)
+      data.putInt(sectionOffset[SECTION_WORD_HASH]+4*i, wordHash[i]);
+    int i = 0;
+    for (Map.Entry<Long, Integer> entry : bigrams.entrySet())
+    {
+      data.putLong(sectionOffset[SECTION_BIGRAM_KEYS]+8*i, entry.getKey());
+      data.put(sectionOffset[SECTION_BIGRAM_BOOSTS]+(i++), (byte) (int) entry.getValue());
+    }
+    i = 0;
+    for (Map.Entry<Long, Integer> entry : trigrams.entrySet())
+    {
+      data.putLong(sectionOffset[SECTION_TRIGRAM_KEYS]+8*i, entry.getKey());
+      data.put(sectionOffset[SECTION_TRIGRAM_BOOSTS]+(i++), (byte) (int) entry.getValue());
+    }
+    return data;
+  }
+
+  private static void addCount(HashMap<Long, Long> counts, long key, long count)
+  {
+    Long existing = counts.get(key);
+    counts.put(key, (existing == null ? count : existing+count));
+  }
+
+  /**
+   * Quantize the probability of a word in a context to a boost.
+   */
+  static int getBoost(long count, long contextCount)
+  {
+    double halvings = Math.log((double) contextCount/count)/Math.log(2);
+    return (int) Math.max(0, Math.min(255, Math.round(255-BOOST_PER_HALVING*halvings)));
+  }
+}
@@ -31,28 +31,66 @@ import java.util.*;
 
 public class TouchListener implements View.OnTouchListener
 {
-  public enum CandidatesType  {None, Trace, Prefix, PrefixAfterDelete, LongPress, ExistingWord};
+  public enum CandidatesType  {None, Trace, Prefix, PrefixAfterDelete, LongPress, ExistingWord, Prediction};
 
   private final KeyboardView keyboardView;
   private final CandidatesView candidatesView;
   private Dictionary dictionary;
   private final Handler handler;
+  private final GestureTrace gesture;
   private final ArrayList<TracePoint> trace;
-  private final LinkedList<Point> displayedPoints;
-  private final LinkedList<Long> displayedTimes;
+  private final ArrayList<TracePoint> unusedPoints;
+  private final ArrayList<Trace> unusedTraces;
+  private final ArrayList<Dictionary.PrefixMatches> unusedPrefixMatches;
+  private TraceSimplifier simplifier;
   private boolean dragInProgress, shouldInsertSpace, spaceBeforeCandidates, spaceAfterCandidates, candidateIsI, isDeleting, selectionEndsWithSpace, isCancelableLongPress;
   private CandidatesType candidatesType;
-  private float lastx, lasty;
-  private float minSpeed, maxSpeedSinceMin;
-  private int numFinalized, skipCharacters, longPressDelay, backspaceDelay;
+  private int skipCharacters, longPressDelay, backspaceDelay, expectedSelection = -1;
   private int existingWordStartOffset, existingWordEndOffset;
-  private long lastTime, startTime;
   private FlowInputMethod inputMethod;
+  private Decoder decoder;
+  private Dictionary.PrefixMatches prefixMatches;
+  private final Dictionary.CompletionSession completionSession = new Dictionary.CompletionSession();
   private KeyboardView.ModifierMode shiftMode, altMode;
   private String candidates[];
+  private String previousWords[];
 
-  private static final char traceableKeys[] = "abcdefghijklmnopqrstuvwxyz\'".toCharArray();
-  private static final long displayLength = 1500;
+  // This handles a touch that has been held for longPressDelay.  It is reused for every touch, so that starting one
+  // doesn't need to allocate anything.
+
+  private final Runnable longPressAction = new Runnable()
+  {
+    public void run()
+    {
+      if (gesture.getNumFinalized() == 0)
+      {
+        if (dragInProgress)
+        {
+          gesture.addStartPoint();
+          TracePoint first = trace.get(0);
+          TracePoint last = trace.get(trace.size()-1);
+          float dist2 = (first.x-last.x)*(first.x-last.x) + (first.y-last.y)*(first.y-last.y);
+          if (dist2 < 0.25f*keyboardView.getKeySpacing()*keyboardView.getKeySpacing())
+          {
+            // Interpret this as a long press.
+
+            finishTrace(true);
+            if (isDeleting)
+              handler.postDelayed(this, backspaceDelay);
+          }
+        }
+        else if (isDeleting && inputMethod != null)
+        {
+          previousWords = null;
+          inputMethod.sendDownUpKeyEvents(KeyEvent.KEYCODE_DEL);
+          setCandidates(null, CandidatesType.None);
+          handler.postDelayed(this, backspaceDelay);
+        }
+      }
+    }
+  };
+
+  private static final int contextLength = 64;
 
   public TouchListener(KeyboardView keyboardView, CandidatesView candidatesView, Dictionary dictionary)
   {
@@ -60,15 +98,19 @@ public class TouchListener implements View.OnTouchListener
     this.candidatesView = candidatesView;
     this.dictionary = dictionary;
     handler = new Handler();
-    trace =  new ArrayList<TracePoint>();
-    displayedPoints = new LinkedList<Point>();
-    displayedTimes = new LinkedList<Long>();
+    gesture = new GestureTrace();
+    trace = gesture.points;
+    unusedPoints = gesture.unusedPoints;
+    unusedTraces = new ArrayList<Trace>();
+    unusedPrefixMatches = new ArrayList<Dictionary.PrefixMatches>();
+    simplifier = new TraceSimplifier();
     candidatesType = CandidatesType.None;
   }
 
   public void setInputMethodService(FlowInputMethod inputMethod)
   {
     this.inputMethod = inputMethod;
+    decoder = inputMethod.getDecoder();
   }
 
   public void setLongPressDelay(int longPressDelay)
@@ -81,6 +123,14 @@ public class TouchListener implements View.OnTouchListener
     return longPressDelay;
   }
 
+  /**
+   * Set how finished traces are simplified before they are decoded.
+   */
+  public void setTraceSimplifier(TraceSimplifier simplifier)
+  {
+    this.simplifier = simplifier;
+  }
+
   public void setBackspaceDelay(int backspaceDelay)
   {
     this.backspaceDelay = backspaceDelay;
@@ -124,6 +174,8 @@ public class TouchListener implements View.OnTouchListener
   {
     isDeleting = false;
     dragInProgress = false;
+    if (decoder != null)
+      decoder.cancel(true);
   }
 
   public boolean onTouch(View view, MotionEvent ev)
@@ -133,54 +185,21 @@ public class TouchListener implements View.OnTouchListener
       return true; // The keyboard hasn't been drawn yet.
     float x = ev.getX();
     float y = ev.getY();
-    final long time = ev.getEventTime();
+    long time = ev.getEventTime();
     if (ev.getAction() == MotionEvent.ACTION_DOWN)
     {
       dragInProgress = true;
       isDeleting = false;
       isCancelableLongPress = false;
-      lastx = x;
-      lasty = y;
-      startTime = lastTime = time;
-      numFinalized = 0;
+      prefixMatches = null;
       shiftMode = keyboardView.getShiftMode();
       altMode = keyboardView.getAltMode();
-      trace.clear();
-      displayedPoints.clear();
-      displayedTimes.clear();
-      displayedPoints.add(new Point((int) x, (int) y));
-      displayedTimes.add(time);
-      handler.postDelayed(new Runnable()
-      {
-        public void run()
-        {
-          if (startTime == time && numFinalized == 0)
-          {
-            if (dragInProgress)
-            {
-              if (trace.size() == 0)
-                trace.add(new TracePoint(lastx, lasty));
-              TracePoint first = trace.get(0);
-              TracePoint last = trace.get(trace.size()-1);
-              float dist2 = (first.x-last.x)*(first.x-last.x) + (first.y-last.y)*(first.y-last.y);
-              if (dist2 < 0.25f*keyboardView.getKeySpacing()*keyboardView.getKeySpacing())
-              {
-                // Interpret this as a long press.
+      gesture.start(x, y, time);
 
-                finishTrace(true);
-                if (isDeleting)
-                  handler.postDelayed(this, backspaceDelay);
-              }
-            }
-            else if (isDeleting && inputMethod != null)
-            {
-              inputMethod.sendDownUpKeyEvents(KeyEvent.KEYCODE_DEL);
-              setCandidates(null, CandidatesType.None);
-              handler.postDelayed(this, backspaceDelay);
-            }
-          }
-        }
-      }, longPressDelay);
+      // Only the long press for this touch should be processed, so cancel any earlier one that is still waiting.
+
+      handler.removeCallbacks(longPressAction);
+      handler.postDelayed(longPressAction, longPressDelay);
       return true;
     }
     if (ev.getAction() == MotionEvent.ACTION_UP && isDeleting)
@@ -211,178 +230,148 @@ public class TouchListener implements View.OnTouchListener
     }
     if (!dragInProgress)
       return true;
-    float dx = x-lastx;
-    float dy = y-lasty;
-    float speed = (float)Math.sqrt(dx*dx+dy*dy)/(time-lastTime);
-    if (trace.size() == 0)
-    {
-      minSpeed = maxSpeedSinceMin = speed;
-      trace.add(new TracePoint(lastx, lasty));
-    }
-    TracePoint current = trace.get(trace.size()-1);
-    TracePoint previous = (trace.size() == 1 ? current : trace.get(trace.size()-2));
-    float scale = 1.0f/(keyboardView.getKeySpacing()*keyboardView.getKeySpacing());
-    float distances2[] = new float[27];
-    findKeyDistances(keyboardView.getKeyboard(), distances2, x, y);
-    if ((minSpeed < 0.5f*maxSpeedSinceMin && speed < 0.5f*maxSpeedSinceMin) || trace.size() == 1)
-    {
-      previous = current;
-      current = new TracePoint(x, y);
-      trace.add(current);
-      for (int j = 0; j < distances2.length; j++)
-        current.keyDistances[j] = Math.min(current.keyDistances[j], distances2[j]);
-      minSpeed = maxSpeedSinceMin = speed;
-
-
-      TracePoint p = trace.get(numFinalized);
-      if (scale*p.distance2(previous) >= 0.25f || trace.size() == 1)
-      {
-        int first = numFinalized;
-        int last = trace.size()-2;
-        if (last > first+1)
-        {
-          float sumx = p.x;
-          float sumy = p.y;
-          for (int i = first+1; i < last; i++)
-          {
-            TracePoint p2 = trace.get(i);
-            p.mergePoint(p2);
-            sumx += p2.x;
-            sumy += p2.y;
-          }
-          p.x = sumx/(last-first);
-          p.y = sumy/(last-first);
-          for (int i = last-1; i > first; i--)
-            trace.remove(i);
-        }
-        numFinalized++;
-        if (numFinalized == 1)
-          updateModifiers();
-      }
-    }
-    else if (speed < minSpeed)
-    {
-      current.x = x;
-      current.y = y;
-      previous.addViaKeys(current.viaKeyList);
-      current.viaKeyList.clear();
-      minSpeed = maxSpeedSinceMin = speed;
-    }
-    else if (speed > maxSpeedSinceMin)
-      maxSpeedSinceMin = speed;
-    for (int j = 0; j < distances2.length; j++)
-      if (distances2[j] <= 0.5f)
-        current.addViaKey(traceableKeys[j], distances2[j], time);
 
+    // A move event holds all the samples since the previous one, which is often several of them per frame.
+    // Process each of them, so corners and via keys are found at the full rate the touch screen reports them.
 
+    int numSamples = ev.getHistorySize();
+    for (int i = 0; i < numSamples; i++)
+      addSample(ev.getHistoricalX(i), ev.getHistoricalY(i), ev.getHistoricalEventTime(i));
+    addSample(x, y, time);
     if (ev.getAction() == MotionEvent.ACTION_UP)
       finishTrace(false);
     if (ev.getAction() == MotionEvent.ACTION_MOVE)
-    {
-      Long first = displayedTimes.peek();
-      while (first != null && first < time-displayLength)
-      {
-        displayedPoints.removeFirst();
-        displayedTimes.removeFirst();
-        first = displayedTimes.peek();
-      }
-      displayedPoints.add(new Point((int) x, (int) y));
-      displayedTimes.add(time);
-      keyboardView.setTrace(displayedPoints);
-    }
-    lastx = x;
-    lasty = y;
-    lastTime = time;
+      keyboardView.setTrace(gesture.displayed);
     return true;
   }
 
-  private void findKeyDistances(KeyboardLayout keyboard, float allDistances[], float x, float y)
+  /**
+   * Add a touch sample to the trace.  Once the first point is finalized, the modifier keys are released, and once
+   * the start of the trace is, it is matched against the dictionary.
+   */
+  private void addSample(float x, float y, long time)
   {
-    Point keyPositions[] = keyboardView.getKeyPositions();
-    Arrays.fill(allDistances, Float.MAX_VALUE);
-    float scale = 1.0f/(keyboardView.getKeySpacing()*keyboardView.getKeySpacing());
-    int numKeys = keyPositions.length;
-    for (int i = 0; i < numKeys; i++)
-    {
-      if (keyboard.slideCharIndex[i] > -1)
-      {
-        Point pos = keyPositions[i];
-        float dist = Math.max(0.0f, (float)Math.sqrt(scale*((pos.x-x)*(pos.x-x)+(pos.y-y)*(pos.y-y)))-0.5f);
-        allDistances[keyboard.slideCharIndex[i]] = dist;
-      }
-    }
+    KeyDistanceField field = keyboardView.getKeyDistanceField(keyboardView.getKeyboard());
+    if (!gesture.addSample(x, y, time, field, keyboardView.getKeySpacing()))
+      return;
+    if (gesture.getNumFinalized() == 1)
+      updateModifiers();
+    if (gesture.getNumFinalized() == Dictionary.PREFIX_TRACE_LENGTH+2)
+      matchTraceStart();
   }
 
-  private void finishTrace(boolean isLongPress)
+  /**
+   * Find the distance from a point to every key.  This returns a bit mask of the keys that might be close enough
+   * to be via keys.
+   */
+  private int findKeyDistances(KeyboardLayout keyboard, float allDistances[], float x, float y)
+  {
+    return keyboardView.getKeyDistanceField(keyboard).findKeyDistances(x, y, allDistances);
+  }
+
+  private void finishTrace(final boolean isLongPress)
   {
     dragInProgress = false;
     keyboardView.setTrace(null);
 
-    // Merge points that correspond to the same set of keys.
+    // Merge points that correspond to the same set of keys, drop points on straight parts of the trace, and
+    // compute weights for the others.
 
-    for (int first = numFinalized; first < trace.size()-1; first++)
-    {
-      TracePoint p = trace.get(first);
-      float scale = 1.0f/(keyboardView.getKeySpacing()*keyboardView.getKeySpacing());
-      int last;
-      for (last = first+1; last < trace.size() && scale*p.distance2(trace.get(last)) < 0.25f; last++)
-        ;
-      if (last > first+1)
-      {
-        float sumx = p.x;
-        float sumy = p.y;
-        for (int i = first+1; i < last; i++)
-        {
-          TracePoint p2 = trace.get(i);
-          p.mergePoint(p2);
-          sumx += p2.x;
-          sumy += p2.y;
-        }
-        p.x = sumx/(last-first);
-        p.y = sumy/(last-first);
-        for (int i = last-1; i > first; i--)
-          trace.remove(i);
-      }
-    }
+    simplifier.simplify(trace, gesture.getNumFinalized(), keyboardView.getKeySpacing(), unusedPoints);
     if (trace.size() == 1)
     {
-      processSingleKey(isLongPress);
+      // If a trace is still being decoded, wait until its word has been entered before processing the key.
+
+      final float x = trace.get(0).x;
+      final float y = trace.get(0).y;
+      if (decoder == null)
+        processSingleKey(x, y, isLongPress);
+      else
+        decoder.runAfterPending(new Runnable()
+        {
+          public void run()
+          {
+            processSingleKey(x, y, isLongPress);
+          }
+        });
       return;
     }
+    clearPredictions();
     if (skipCharacters == 0 && candidatesType != CandidatesType.ExistingWord)
       selectCandidate(0, true);
     candidateIsI = false;
-
-    // Compute weights for points.
-
-    for (int i = 1; i < trace.size()-1; i++)
-    {
-      TracePoint p1 = trace.get(i-1);
-      TracePoint p2 = trace.get(i);
-      TracePoint p3 = trace.get(i+1);
-      float dx1 = p2.x-p1.x;
-      float dy1 = p2.y-p1.y;
-      float dx2 = p3.x-p2.x;
-      float dy2 = p3.y-p2.y;
-      float len1 = (float)Math.sqrt(dx1*dx1+dy1*dy1);
-      float len2 = (float)Math.sqrt(dx2*dx2+dy2*dy2);
-      float dot = (dx1*dx2+dy1*dy2)/(len1*len2);
-      if (dot > 0.95f && trace.size() > 10)
-        trace.remove(i--);
-      else
-        p2.weight = 0.75f-0.25f*dot;
-    }
-
-    for (TracePoint point : trace)
+    if (dictionary == null || decoder == null)
+      showTraceCandidates(null); // The dictionary is still loading.
+    else
     {
-      Collections.sort(point.viaKeyList);
-      findKeyDistances(keyboardView.getKeyboard(), point.keyDistances, point.x, point.y);
-      point.finalizeViaKeys();
+      final Trace decodedTrace = createTrace();
+      final Dictionary.PrefixMatches matches = prefixMatches;
+      decoder.guessWord(dictionary, decodedTrace, getPreviousWords(), shiftMode, 5, false, matches, new Decoder.Callback()
+      {
+        public void onWordGuessed(String guesses[])
+        {
+          unusedTraces.add(decodedTrace);
+          if (matches != null)
+            unusedPrefixMatches.add(matches);
+          showTraceCandidates(guesses);
+        }
+      });
     }
-    setCandidates(dictionary.guessWord(trace.toArray(new TracePoint[trace.size()]), shiftMode, 5), CandidatesType.Trace);
+    if (shiftMode == KeyboardView.ModifierMode.DOWN)
+      keyboardView.setShiftMode(KeyboardView.ModifierMode.UP);
+    if (altMode == KeyboardView.ModifierMode.DOWN)
+      keyboardView.setAltMode(KeyboardView.ModifierMode.UP);
+  }
+
+  /**
+   * The start of the trace will not change any more (unless finishTrace() later decides to drop one of its
+   * points), so begin matching it against the dictionary while the user is still drawing.  Like the Trace for
+   * the whole gesture, the matches are reused once the decoder has delivered the guesses they were used for.
+   */
+  private void matchTraceStart()
+  {
+    if (dictionary == null || decoder == null)
+      return;
+    if (unusedPrefixMatches.isEmpty())
+      prefixMatches = new Dictionary.PrefixMatches(new Trace(Dictionary.PREFIX_TRACE_LENGTH));
+    else
+      prefixMatches = unusedPrefixMatches.remove(unusedPrefixMatches.size()-1);
+    prefixMatches.clear();
+    gesture.copyStart(prefixMatches.start, keyboardView.getKeyDistanceField(keyboardView.getKeyboard()));
+    decoder.matchPrefixes(dictionary, prefixMatches);
+  }
+
+  /**
+   * The points in the trace will be reused for the next one, so the decoder gets a Trace holding their positions,
+   * weights and via keys.  Each Trace is reused once the decoder has delivered the guesses for it.
+   */
+  private Trace createTrace()
+  {
+    Trace decodedTrace = (unusedTraces.isEmpty() ? new Trace() : unusedTraces.remove(unusedTraces.size()-1));
+    gesture.copyTo(decodedTrace, keyboardView.getKeyDistanceField(keyboardView.getKeyboard()));
+    return decodedTrace;
+  }
+
+  private void finalizePoint(KeyboardLayout keyboard, TracePoint point)
+  {
+    Collections.sort(point.viaKeyList);
+    findKeyDistances(keyboard, point.keyDistances, point.x, point.y);
+    point.finalizeViaKeys();
+  }
+
+  private void showTraceCandidates(String guesses[])
+  {
+    // If the word from an earlier trace is still being shown, enter it first.
+
+    if (candidatesType == CandidatesType.Trace)
+      selectCandidate(0, true);
+    if (guesses == null)
+      setCandidates(null, CandidatesType.None);
+    else
+      setCandidates(guesses, CandidatesType.Trace);
     ensureCandidatesAreUnique();
     spaceBeforeCandidates = false;
-    if (inputMethod != null && candidates[0] != null)
+    if (inputMethod != null && candidates != null && candidates[0] != null)
     {
       candidatesView.setCandidates(candidates, true);
       skipCharacters = 0;
@@ -408,19 +397,15 @@ public class TouchListener implements View.OnTouchListener
       }
       selectCandidate(0, false);
     }
-    if (shiftMode == KeyboardView.ModifierMode.DOWN)
-      keyboardView.setShiftMode(KeyboardView.ModifierMode.UP);
-    if (altMode == KeyboardView.ModifierMode.DOWN)
-      keyboardView.setAltMode(KeyboardView.ModifierMode.UP);
   }
 
-  private void processSingleKey(boolean longPress)
+  private void processSingleKey(float x, float y, boolean longPress)
   {
+    previousWords = null;
+    clearPredictions();
     Point keyPositions[] = keyboardView.getKeyPositions();
     int nearest = -1;
     float nearestDistance = Float.MAX_VALUE;
-    float x = trace.get(0).x;
-    float y = trace.get(0).y;
     for (int i = 0; i < keyPositions.length; i++)
     {
       Point pos = keyPositions[i];
@@ -587,6 +572,7 @@ public class TouchListener implements View.OnTouchListener
           ArrayList<String> results = bundle.getStringArrayList(SpeechRecognizer.RESULTS_RECOGNITION);
           if (results.size() > 0)
           {
+            previousWords = null;
             setCandidates(new String[] {results.get(0)}, CandidatesType.Trace);
             if (shiftMode == KeyboardView.ModifierMode.DOWN)
             {
@@ -761,14 +747,16 @@ public class TouchListener implements View.OnTouchListener
     if (ic == null)
       return;
     String prev = getPrefixBeforeCursor();
-    if (prev != null && prev.length() > 0)
+    if (prev != null && prev.length() > 0 && dictionary != null)
     {
-      setCandidates(dictionary.findWordsStartingWith(prev), afterDelete ? CandidatesType.PrefixAfterDelete : CandidatesType.Prefix);
+      setCandidates(dictionary.findWordsStartingWith(prev, completionSession), afterDelete ? CandidatesType.PrefixAfterDelete : CandidatesType.Prefix);
       ensureCandidatesAreUnique();
       if (!inputMethod.isPasswordMode())
         candidatesView.setCandidates(candidates, false);
       skipCharacters = prev.length();
     }
+    else if (!afterDelete)
+      showPredictions();
     else
     {
       setCandidates(null, CandidatesType.None);
@@ -777,6 +765,56 @@ public class TouchListener implements View.OnTouchListener
     }
   }
 
+  /**
+   * Show the words that are likely to come next, if the language model has any for the words before the cursor.
+   * They are only entered if one of them is tapped.
+   */
+  private void showPredictions()
+  {
+    String predictions[] = (dictionary == null ? null : dictionary.predictNextWords(getPreviousWords(), 5));
+    skipCharacters = 0;
+    if (predictions == null)
+    {
+      setCandidates(null, CandidatesType.None);
+      candidatesView.setCandidates(null, false);
+      return;
+    }
+    setCandidates(predictions, CandidatesType.Prediction);
+    candidatesView.setCandidates(candidates, false);
+    spaceBeforeCandidates = false;
+    spaceAfterCandidates = true;
+    InputConnection ic = inputMethod.getCurrentInputConnection();
+    if (ic != null)
+    {
+      CharSequence prev = ic.getTextBeforeCursor(1, 0);
+      if (prev != null && prev.length() > 0 && !Character.isWhitespace(prev.charAt(0)))
+        spaceBeforeCandidates = true;
+    }
+  }
+
+  /**
+   * Anything other than tapping a prediction replaces the predictions, without entering any of them.
+   */
+  private void clearPredictions()
+  {
+    if (candidatesType == CandidatesType.Prediction)
+    {
+      setCandidates(null, CandidatesType.None);
+      candidatesView.setCandidates(null, false);
+    }
+  }
+
+  /**
+   * Enter the candidate the user tapped.  If it is a word, show the words likely to follow it.
+   */
+  public void pickCandidate(int index)
+  {
+    CandidatesType type = candidatesType;
+    selectCandidate(index, true);
+    if (type == CandidatesType.Trace || type == CandidatesType.Prefix || type == CandidatesType.PrefixAfterDelete || type == CandidatesType.Prediction)
+      showPredictions();
+  }
+
   private void ensureCandidatesAreUnique()
   {
     if (candidates == null || candidates.length < 2 || candidates[0] == null)
@@ -800,6 +838,20 @@ public class TouchListener implements View.OnTouchListener
   {
     if (candidates == null)
       return;
+
+    // When a traced or predicted word is entered, it becomes the last of the previous words.  Anything else means
+    // they need to be read from the text again.
+
+    boolean enteredWord = (candidatesType == CandidatesType.Trace || candidatesType == CandidatesType.Prediction);
+    if (confirm && enteredWord && previousWords != null && candidates[index] != null)
+      previousWords = new String[] {previousWords[1], candidates[index]};
+    else if (confirm)
+      previousWords = null;
+
+    // Count the words that are entered from the candidates, but not single characters.
+
+    if (confirm && inputMethod != null && candidates[index] != null && candidatesType != CandidatesType.LongPress)
+      inputMethod.addToWordHistory(candidates[index]);
     if (inputMethod != null && candidates[index] != null)
     {
       InputConnection ic = inputMethod.getCurrentInputConnection();
@@ -819,10 +871,13 @@ public class TouchListener implements View.OnTouchListener
             text = " "+text;
           if (selectionEndsWithSpace)
             text = text+" "; // Double-tap selects a word plus the following space.  We want to preserve that space.
-          if (confirm && index == 0 && skipCharacters == 0)
+          if (confirm && index == 0 && skipCharacters == 0 && candidatesType != CandidatesType.Prediction)
             ic.finishComposingText();
           else if (confirm)
+          {
+            expectedSelection = inputMethod.getSelectionAfterCommit(text.length());
             ic.commitText(text, 1);
+          }
           else
             ic.setComposingText(text, 1);
         }
@@ -836,18 +891,55 @@ public class TouchListener implements View.OnTouchListener
     }
   }
 
+  /**
+   * Get the two words before the cursor, for ranking the guesses for a trace.  They are read from the text when
+   * the cursor has moved since the last trace, and otherwise kept up to date as traced words are entered.
+   */
+  private String[] getPreviousWords()
+  {
+    if (inputMethod == null || inputMethod.isPasswordMode())
+      return null;
+    if (previousWords == null)
+    {
+      InputConnection ic = inputMethod.getCurrentInputConnection();
+      if (ic != null)
+        previousWords = LanguageModel.getPreviousWords(ic.getTextBeforeCursor(contextLength, 0));
+    }
+    return previousWords;
+  }
+
+  /**
+   * Get whether the cursor moved to where committing a candidate put it, rather than because the user moved it.
+   * Only the first move after the commit is compared, so if the editor never reports it, later moves are still
+   * noticed.
+   */
+  public boolean isCommittedSelection(int selection)
+  {
+    boolean committed = (selection == expectedSelection);
+    expectedSelection = -1;
+    return committed;
+  }
+
+  /**
+   * Forget the words before the cursor, because the text or the cursor position has changed.
+   */
+  public void resetPreviousWords()
+  {
+    previousWords = null;
+  }
+
   public void suggestReplacementsForExistingWord()
   {
     updateAddWordButton();
     shiftMode = keyboardView.getShiftMode();
     InputConnection ic = inputMethod.getCurrentInputConnection();
-    if (ic == null || isDeleting)
+    if (ic == null || isDeleting || dictionary == null || decoder == null || decoder.isBusy())
       return;
-    String prev = getPrefixBeforeCursor();
-    String next = getSuffixAfterCursor();
+    final String prev = getPrefixBeforeCursor();
+    final String next = getSuffixAfterCursor();
     if (prev == null || next == null)
       return;
-    String word = prev+next;
+    final String word = prev+next;
     if (word.length() == 0)
       return;
     String lowerCaseWord = word.toLowerCase();
@@ -913,15 +1005,23 @@ public class TouchListener implements View.OnTouchListener
       }
     }
     for (TracePoint point : trace)
-    {
-      Collections.sort(point.viaKeyList);
-      findKeyDistances(baseKeyboard, point.keyDistances, point.x, point.y);
-      point.finalizeViaKeys();
-    }
+      finalizePoint(baseKeyboard, point);
+
+    // Determine the list of candidates.  This is canceled if anything else happens before it finishes.
 
-    // Determine the list of candidates.
+    decoder.guessWord(dictionary, trace.toArray(new TracePoint[trace.size()]), shiftMode, 6, true, new Decoder.Callback()
+    {
+      public void onWordGuessed(String guesses[])
+      {
+        if (guesses != null)
+          showReplacementCandidates(guesses, word, prev.length(), next.length());
+      }
+    });
+  }
 
-    setCandidates(dictionary.guessWord(trace.toArray(new TracePoint[trace.size()]), shiftMode, 6), CandidatesType.ExistingWord);
+  private void showReplacementCandidates(String guesses[], String word, int startOffset, int endOffset)
+  {
+    setCandidates(guesses, CandidatesType.ExistingWord);
     int nextCandidate = 0;
     for (int i = 0; i < candidates.length; i++)
     {
@@ -935,8 +1035,8 @@ public class TouchListener implements View.OnTouchListener
       candidates[i] = null;
     ensureCandidatesAreUnique();
     candidatesView.setCandidates(candidates, false);
-    existingWordStartOffset = prev.length();
-    existingWordEndOffset = next.length();
+    existingWordStartOffset = startOffset;
+    existingWordEndOffset = endOffset;
   }
 
   private void updateAddWordButton()
@@ -945,17 +1045,11 @@ public class TouchListener implements View.OnTouchListener
     String next = getSuffixAfterCursor();
     boolean shouldEnable = false;
     String word = null;
-    if (prev != null && next != null && !inputMethod.isPasswordMode())
+    if (prev != null && next != null && !inputMethod.isPasswordMode() && dictionary != null)
     {
       word = prev+next;
       if (word.length() > 1)
-      {
-        String lowerCaseWord = word.toLowerCase();
-        shouldEnable = true;
-        for (String candidate : dictionary.findWordsStartingWith(word))
-          if (candidate != null && candidate.toLowerCase().equals(lowerCaseWord))
-            shouldEnable = false;
-      }
+        shouldEnable = (dictionary.getWordFrequency(word) < 0);
     }
     inputMethod.getAddWordButton().setWord(shouldEnable ? word : null);
   }
@@ -0,0 +1,193 @@
+package info.thfr.wolfkeyboard;
+
+/**
+ * Copyright 2019         Thomas Frohwein <11335318+rfht@users.noreply.github.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import java.util.*;
+
+/**
+ * A complete trace as it is passed to the decoder.  The positions, weights, key distances and via keys of all
+ * points are stored in a few arrays instead of a TracePoint per point, and the via keys of each point are kept in
+ * the order the trace passed over them.  A trace can be cleared and filled again for another gesture; the arrays
+ * only grow when a longer one needs them.
+ */
+public class Trace
+{
+  private int length, numViaKeys;
+  private float x[], y[], weight[];
+  private float keyDistances[];
+  private int viaStart[];
+  private int viaKeys[];
+  private float viaDistances[];
+  private long viaTimes[];
+
+  public Trace()
+  {
+    this(16);
+  }
+
+  public Trace(int capacity)
+  {
+    capacity = Math.max(capacity, 1);
+    x = new float[capacity];
+    y = new float[capacity];
+    weight = new float[capacity];
+    keyDistances = new float[capacity*27];
+    viaStart = new int[capacity+1];
+    viaKeys = new int[capacity*4];
+    viaDistances = new float[capacity*4];
+    viaTimes = new long[capacity*4];
+  }
+
+  /**
+   * Create a trace from points whose key distances have been computed.
+   */
+  public Trace(TracePoint points[])
+  {
+    this(points.length);
+    for (TracePoint point : points)
+      addPoint(point);
+  }
+
+  public void clear()
+  {
+    length = 0;
+    numViaKeys = 0;
+  }
+
+  public void addPoint(TracePoint point)
+  {
+    addPoint(point.x, point.y, point.weight, point.keyDistances, point.viaKeyList);
+  }
+
+  /**
+   * Add a point to the end of the trace.  The via keys are sorted by the time they were passed.
+   */
+  public void addPoint(float px, float py, float pweight, float distances[], List<TracedKey> keys)
+  {
+    if (length == x.length)
+    {
+      int capacity = 2*length;
+      x = Arrays.copyOf(x, capacity);
+      y = Arrays.copyOf(y, capacity);
+      weight = Arrays.copyOf(weight, capacity);
+      keyDistances = Arrays.copyOf(keyDistances, capacity*27);
+      viaStart = Arrays.copyOf(viaStart, capacity+1);
+    }
+    int numKeys = keys.size();
+    if (numViaKeys+numKeys > viaKeys.length)
+    {
+      int capacity = Math.max(2*viaKeys.length, numViaKeys+numKeys);
+      viaKeys = Arrays.copyOf(viaKeys, capacity);
+      viaDistances = Arrays.copyOf(viaDistances, capacity);
+      viaTimes = Arrays.copyOf(viaTimes, capacity);
+    }
+    x[length] = px;
+    y[length] = py;
+    weight[length] = pweight;
+    System.arraycopy(distances, 0, keyDistances, length*27, 27);
+
+    // Insert each via key after the ones that were passed before it.  There are only a few per point, and they
+    // are usually in order already.
+
+    int start = numViaKeys;
+    for (int i = 0; i < numKeys; i++)
+    {
+      TracedKey key = keys.get(i);
+      int j;
+      for (j = numViaKeys; j > start && viaTimes[j-1] > key.nearestTime; j--)
+      {
+        viaKeys[j] = viaKeys[j-1];
+        viaDistances[j] = viaDistances[j-1];
+        viaTimes[j] = viaTimes[j-1];
+      }
+      viaKeys[j] = key.key;
+      viaDistances[j] = key.nearestDistance;
+      viaTimes[j] = key.nearestTime;
+      numViaKeys++;
+    }
+    viaStart[length] = start;
+    viaStart[length+1] = numViaKeys;
+    length++;
+  }
+
+  public int size()
+  {
+    return length;
+  }
+
+  public float getX(int point)
+  {
+    return x[point];
+  }
+
+  public float getY(int point)
+  {
+    return y[point];
+  }
+
+  public float getWeight(int point)
+  {
+    return weight[point];
+  }
+
+  public float getKeyDistance(int point, int c)
+  {
+    if (c == '\'')
+      return keyDistances[point*27+26];
+    return keyDistances[point*27+c-'a'];
+  }
+
+  public int getNumViaKeys(int point)
+  {
+    return viaStart[point+1]-viaStart[point];
+  }
+
+  public int getViaKey(int point, int index)
+  {
+    return viaKeys[viaStart[point]+index];
+  }
+
+  public float getViaKeyDistance(int point, int index)
+  {
+    return viaDistances[viaStart[point]+index];
+  }
+
+  /**
+   * Get whether the first points of this trace would be scored the same as all points of another one.
+   */
+  public boolean startsWith(Trace start)
+  {
+    if (length < start.length)
+      return false;
+    for (int i = 0; i < start.length; i++)
+    {
+      if (x[i] != start.x[i] || y[i] != start.y[i] || weight[i] != start.weight[i])
+        return false;
+      for (int j = i*27; j < i*27+27; j++)
+        if (Float.floatToIntBits(keyDistances[j]) != Float.floatToIntBits(start.keyDistances[j]))
+          return false;
+      int numKeys = getNumViaKeys(i);
+      if (numKeys != start.getNumViaKeys(i))
+        return false;
+      for (int j = 0; j < numKeys; j++)
+        if (getViaKey(i, j) != start.getViaKey(i, j) || getViaKeyDistance(i, j) != start.getViaKeyDistance(i, j))
+          return false;
+    }
+    return true;
+  }
+}
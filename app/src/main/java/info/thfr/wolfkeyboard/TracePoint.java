@@ -27,23 +27,45 @@ public class TracePoint
   public final int viaKeyIndices[];
   public float x, y, weight;
   public TracedKey viaKeys[];
+  private final ArrayList<TracedKey> unusedKeys;
 
   public TracePoint(float x, float y)
   {
-    this.x = x;
-    this.y = y;
+    this(x, y, new ArrayList<TracedKey>());
+  }
+
+  /**
+   * Create a point that takes the via keys it needs from a list of unused ones, and puts them back in it when
+   * they are removed.  Points that share the list must all be used on the same thread.
+   */
+  public TracePoint(float x, float y, ArrayList<TracedKey> unusedKeys)
+  {
+    this.unusedKeys = unusedKeys;
     viaKeyList = new ArrayList<TracedKey>();
     keyDistances = new float[27];
     viaKeyIndices = new int[26];
+    reset(x, y);
+  }
+
+  /**
+   * Make this point the same as a newly created one, so it can be reused for another trace.
+   */
+  public void reset(float x, float y)
+  {
+    this.x = x;
+    this.y = y;
+    weight = 1.0f;
     Arrays.fill(keyDistances, Float.MAX_VALUE);
     Arrays.fill(viaKeyIndices, -1);
-    weight = 1.0f;
+    clearViaKeys();
+    viaKeys = null;
   }
 
   public void addViaKey(int key, float distance, long time)
   {
-    for (TracedKey c : viaKeyList)
+    for (int i = 0; i < viaKeyList.size(); i++)
     {
+      TracedKey c = viaKeyList.get(i);
       if (c.key == key)
       {
         if (distance < c.nearestDistance)
@@ -54,13 +76,35 @@ public class TracePoint
         return;
       }
     }
-    viaKeyList.add(new TracedKey(key, distance, time));
+    if (unusedKeys.isEmpty())
+      viaKeyList.add(new TracedKey(key, distance, time));
+    else
+    {
+      TracedKey c = unusedKeys.remove(unusedKeys.size()-1);
+      c.key = key;
+      c.nearestDistance = distance;
+      c.nearestTime = time;
+      viaKeyList.add(c);
+    }
   }
 
   public void addViaKeys(List<TracedKey> keys)
   {
-    for (TracedKey key : keys)
+    for (int i = 0; i < keys.size(); i++)
+    {
+      TracedKey key = keys.get(i);
       addViaKey(key.key, key.nearestDistance, key.nearestTime);
+    }
+  }
+
+  /**
+   * Remove all via keys.  They are kept to be reused by addViaKey().
+   */
+  public void clearViaKeys()
+  {
+    for (int i = 0; i < viaKeyList.size(); i++)
+      unusedKeys.add(viaKeyList.get(i));
+    viaKeyList.clear();
   }
 
   public void finalizeViaKeys()
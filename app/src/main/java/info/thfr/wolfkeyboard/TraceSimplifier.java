@@ -0,0 +1,153 @@
+package info.thfr.wolfkeyboard;
+
+/**
+ * Copyright 2019         Thomas Frohwein <11335318+rfht@users.noreply.github.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import java.util.*;
+
+/**
+ * This class reduces a finished trace to the points the decoder needs before it is decoded.  The time to decode
+ * a trace grows with its length, so points that don't add information are removed: points close enough together
+ * to correspond to the same key are merged, and points on a straight part of the trace are dropped.  The
+ * remaining points are weighted by how sharply the trace turns at them.  Each step takes linear time.
+ */
+public class TraceSimplifier
+{
+  final float mergeDistance;
+  final float straightCosine;
+  final int minPoints;
+
+  static final float DEFAULT_MERGE_DISTANCE = 0.5f;
+  static final float DEFAULT_STRAIGHT_COSINE = 0.95f;
+  static final int DEFAULT_MIN_POINTS = 10;
+
+  public TraceSimplifier()
+  {
+    this(DEFAULT_MERGE_DISTANCE, DEFAULT_STRAIGHT_COSINE, DEFAULT_MIN_POINTS);
+  }
+
+  /**
+   * Create a simplifier.  Points closer than mergeDistance (in units of the key spacing) to the first point of a
+   * run are merged into it.  A point is dropped if the cosine of the angle the trace turns through at it is
+   * greater than straightCosine, but only while the trace has more than minPoints points.  The letter of a
+   * dropped point is still a via key of the next one, since that segment of the trace starts there.
+   */
+  public TraceSimplifier(float mergeDistance, float straightCosine, int minPoints)
+  {
+    this.mergeDistance = mergeDistance;
+    this.straightCosine = straightCosine;
+    this.minPoints = minPoints;
+  }
+
+  /**
+   * Simplify a trace in place.  Points before the first one given have already been merged.  Points that are
+   * removed are added to the removed list, so they can be reused.
+   */
+  public void simplify(ArrayList<TracePoint> trace, int first, float spacing, ArrayList<TracePoint> removed)
+  {
+    mergeClosePoints(trace, first, spacing, removed);
+    if (trace.size() > 1)
+      removeStraightPoints(trace, removed);
+  }
+
+  /**
+   * Merge runs of points that correspond to the same set of keys into the first point of each run, which is
+   * moved to their average position.
+   */
+  private void mergeClosePoints(ArrayList<TracePoint> trace, int first, float spacing, ArrayList<TracePoint> removed)
+  {
+    float scale = 1.0f/(spacing*spacing);
+    float limit = mergeDistance*mergeDistance;
+    int size = trace.size();
+    int kept = first;
+    int next = first;
+    while (next < size)
+    {
+      TracePoint p = trace.get(next);
+      int last;
+      for (last = next+1; last < size && scale*p.distance2(trace.get(last)) < limit; last++)
+        ;
+      if (last > next+1)
+      {
+        float sumx = p.x;
+        float sumy = p.y;
+        for (int i = next+1; i < last; i++)
+        {
+          TracePoint p2 = trace.get(i);
+          p.mergePoint(p2);
+          sumx += p2.x;
+          sumy += p2.y;
+          removed.add(p2);
+        }
+        p.x = sumx/(last-next);
+        p.y = sumy/(last-next);
+      }
+      trace.set(kept++, p);
+      next = last;
+    }
+    truncate(trace, kept);
+  }
+
+  /**
+   * Drop points where the trace doesn't turn, and set the weights of the others.  Each point is compared to the
+   * last one that was kept, so a gradual curve is not removed completely.
+   */
+  private void removeStraightPoints(ArrayList<TracePoint> trace, ArrayList<TracePoint> removed)
+  {
+    int size = trace.size();
+    int kept = 1;
+    for (int i = 1; i < size-1; i++)
+    {
+      TracePoint p = trace.get(i);
+      float dot = getTurnCosine(trace.get(kept-1), p, trace.get(i+1));
+      if (dot > straightCosine && kept+size-i > minPoints)
+        removed.add(p);
+      else
+      {
+        p.weight = getWeight(dot);
+        trace.set(kept++, p);
+      }
+    }
+    trace.set(kept++, trace.get(size-1));
+    truncate(trace, kept);
+  }
+
+  /**
+   * Get the weight of a point where the cosine of the angle the trace turns through is dot.
+   */
+  public static float getWeight(float dot)
+  {
+    return 0.75f-0.25f*dot;
+  }
+
+  public static float getTurnCosine(TracePoint p1, TracePoint p2, TracePoint p3)
+  {
+    float dx1 = p2.x-p1.x;
+    float dy1 = p2.y-p1.y;
+    float dx2 = p3.x-p2.x;
+    float dy2 = p3.y-p2.y;
+    float len1 = (float)Math.sqrt(dx1*dx1+dy1*dy1);
+    float len2 = (float)Math.sqrt(dx2*dx2+dy2*dy2);
+    return (dx1*dx2+dy1*dy2)/(len1*len2);
+  }
+
+  private static void truncate(ArrayList<TracePoint> trace, int size)
+  {
+    for (int i = trace.size()-1; i >= size; i--)
+      trace.remove(i);
+  }
+}
@@ -0,0 +1,193 @@
+package info.thfr.wolfkeyboard;
+
+/**
+ * Copyright 2019         Thomas Frohwein <11335318+rfht@users.noreply.github.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import android.content.*;
+import android.database.*;
+import android.provider.*;
+
+import java.util.*;
+
+/**
+ * This class holds the words from the user dictionary.  It is a small overlay that Dictionary consults in
+ * addition to its (immutable) base word list, so adding a word doesn't require rebuilding the dictionary.
+ * Instances are immutable; changes create a new instance.
+ */
+public class UserWords
+{
+  public static final UserWords EMPTY = new UserWords(new char[0][], new short[0]);
+
+  final char words[][];
+  final char traces[][];
+  final short frequency[];
+  final int keyOrder[];
+  final int keyStart[];
+
+  private static final HashMap<Integer, Integer> replacements = DictionaryCompiler.createReplacements();
+
+  private UserWords(char words[][], short frequency[])
+  {
+    // Some words, such as a lone period, have empty traces and can never be traced.  Leave them out the same
+    // way DictionaryCompiler does.
+
+    char allTraces[][] = new char[words.length][];
+    int numTraceable = 0;
+    for (int i = 0; i < words.length; i++)
+    {
+      allTraces[i] = DictionaryCompiler.createTrace(words[i], replacements);
+      if (allTraces[i].length > 0)
+        numTraceable++;
+    }
+    if (numTraceable < words.length)
+    {
+      char traceableWords[][] = new char[numTraceable][];
+      char traceableTraces[][] = new char[numTraceable][];
+      short traceableFrequency[] = new short[numTraceable];
+      int next = 0;
+      for (int i = 0; i < words.length; i++)
+        if (allTraces[i].length > 0)
+        {
+          traceableWords[next] = words[i];
+          traceableTraces[next] = allTraces[i];
+          traceableFrequency[next++] = frequency[i];
+        }
+      words = traceableWords;
+      allTraces = traceableTraces;
+      frequency = traceableFrequency;
+    }
+
+    // The words are sorted the same way as in the main dictionary.  Also build an index from the first
+    // key of each trace to the words starting with it.
+
+    this.words = words;
+    this.frequency = frequency;
+    traces = allTraces;
+    keyStart = new int[28];
+    for (int i = 0; i < words.length; i++)
+      keyStart[keyIndex(traces[i])+1]++;
+    for (int i = 1; i < keyStart.length; i++)
+      keyStart[i] += keyStart[i-1];
+    keyOrder = new int[words.length];
+    int next[] = keyStart.clone();
+    for (int i = 0; i < words.length; i++)
+      keyOrder[next[keyIndex(traces[i])]++] = i;
+  }
+
+  /**
+   * Query the system user dictionary.  This should not be called on the main thread.
+   */
+  public static UserWords load(Context context)
+  {
+    ArrayList<DictionaryCompiler.SortedWord> wordList = new ArrayList<DictionaryCompiler.SortedWord>();
+    Cursor cursor = context.getContentResolver().query(UserDictionary.Words.CONTENT_URI, new String[] {UserDictionary.Words.WORD, UserDictionary.Words.FREQUENCY}, null, null, null);
+    if (cursor == null)
+      return EMPTY;
+    if (cursor.moveToFirst())
+    {
+      do
+      {
+        String word = cursor.getString(0);
+        int frequency = cursor.getInt(1);
+        if (word == null || word.length() == 0)
+          continue;
+        wordList.add(new DictionaryCompiler.SortedWord(word.toCharArray(), clampFrequency(frequency)));
+      } while (cursor.moveToNext());
+    }
+    cursor.close();
+    Collections.sort(wordList);
+    char words[][] = new char[wordList.size()][];
+    short frequency[] = new short[wordList.size()];
+    for (int i = 0; i < words.length; i++)
+    {
+      words[i] = wordList.get(i).word;
+      frequency[i] = wordList.get(i).frequency;
+    }
+    return new UserWords(words, frequency);
+  }
+
+  /**
+   * Create a copy of this object with one additional word.
+   */
+  public UserWords withWord(String word, int wordFrequency)
+  {
+    char chars[] = word.toCharArray();
+    int insert = findFirst(chars);
+    char newWords[][] = new char[words.length+1][];
+    short newFrequency[] = new short[words.length+1];
+    System.arraycopy(words, 0, newWords, 0, insert);
+    System.arraycopy(frequency, 0, newFrequency, 0, insert);
+    newWords[insert] = chars;
+    newFrequency[insert] = clampFrequency(wordFrequency);
+    System.arraycopy(words, insert, newWords, insert+1, words.length-insert);
+    System.arraycopy(frequency, insert, newFrequency, insert+1, words.length-insert);
+    return new UserWords(newWords, newFrequency);
+  }
+
+  public int size()
+  {
+    return words.length;
+  }
+
+  /**
+   * Find the index of the first word that does not come before the specified one.
+   */
+  int findFirst(char prefix[])
+  {
+    int start = 0, end = words.length;
+    while (start < end)
+    {
+      int mid = (start+end)>>>1;
+      if (Dictionary.wordComparator.compare(words[mid], prefix) < 0)
+        start = mid+1;
+      else
+        end = mid;
+    }
+    return start;
+  }
+
+  boolean startsWithIgnoreCase(int index, char prefix[])
+  {
+    char word[] = words[index];
+    int length = prefix.length;
+    if (word.length < length)
+      return false;
+    for (int i = 0; i < length; i++)
+    {
+      if (Character.toLowerCase(word[i]) != Character.toLowerCase(prefix[i]))
+        return false;
+    }
+    return true;
+  }
+
+  static int keyIndex(char trace[])
+  {
+    if (trace.length == 0)
+      return 26;
+    char c = trace[0];
+    return (c >= 'a' && c <= 'z' ? c-'a' : 26);
+  }
+
+  private static short clampFrequency(int frequency)
+  {
+    if (frequency < 0)
+      frequency = 0;
+    if (frequency > 255)
+      frequency = 255;
+    return (short) frequency;
+  }
+}
@@ -0,0 +1,303 @@
+package info.thfr.wolfkeyboard;
+
+/**
+ * Copyright 2019         Thomas Frohwein <11335318+rfht@users.noreply.github.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import android.os.*;
+import android.util.*;
+
+import java.io.*;
+
+/**
+ * This class counts how often the user enters each word, so the words they use most can be ranked higher than
+ * the dictionary's frequencies alone would put them.  Words are identified by a 64 bit hash of their lower case
+ * letters, and the counts are kept in an open addressing hash table.
+ *
+ * The counts are saved to a log file, one record of a hash and a count for each time a word was entered.
+ * Records are collected in memory and appended by the writer thread a while later, so entering a word never
+ * touches the disk.  When the log has grown to several times the number of distinct words, it is rewritten
+ * with a single record for each of them.
+ */
+public class WordHistory
+{
+  private static final int RECORD_SIZE = 12;
+  private static final int COMPACT_RATIO = 2;
+  private static final int COMPACT_SLACK = 1024;
+  private static final long FLUSH_DELAY = 10000;
+  static final int BOOST_PER_DOUBLING = 16;
+  static final int MAX_BOOST = 96;
+
+  private final File file;
+  private final Handler writer;
+  private long keys[];
+  private int counts[];
+  private int size;
+  private long pendingKeys[];
+  private int numPending;
+  private int numRecords;
+  private boolean flushScheduled;
+
+  private final Runnable flushAction = new Runnable()
+  {
+    public void run()
+    {
+      flush();
+    }
+  };
+
+  private WordHistory(File file, Handler writer)
+  {
+    this.file = file;
+    this.writer = writer;
+    keys = new long[64];
+    counts = new int[64];
+    pendingKeys = new long[16];
+  }
+
+  /**
+   * Load the counts from a log file.  If it doesn't exist yet, the history starts out empty.  If writer is not
+   * null, new records are written on its thread; otherwise they are only written when flush() is called.  This
+   * should not be called on the main thread.
+   */
+  public static WordHistory load(File file, Handler writer)
+  {
+    WordHistory history = new WordHistory(file, writer);
+    if (!file.exists())
+      return history;
+    try
+    {
+      DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+      try
+      {
+        // If the last record was only partly written, it is ignored, and cut off by the next flush.
+
+        long numComplete = file.length()/RECORD_SIZE;
+        for (long i = 0; i < numComplete; i++)
+        {
+          long key = in.readLong();
+          int count = in.readInt();
+          if (key != 0 && count > 0)
+            history.add(key, count);
+        }
+        history.numRecords = (int) numComplete;
+      }
+      finally
+      {
+        in.close();
+      }
+    }
+    catch (IOException ex)
+    {
+      Log.d("Flow", "Exception loading word history", ex);
+    }
+    return history;
+  }
+
+  /**
+   * Count one use of a word, and schedule it to be written.
+   */
+  public synchronized void addWord(String word)
+  {
+    long key = hashWord(word.toCharArray(), word.length());
+    add(key, 1);
+    if (numPending == pendingKeys.length)
+    {
+      long newPending[] = new long[2*pendingKeys.length];
+      System.arraycopy(pendingKeys, 0, newPending, 0, numPending);
+      pendingKeys = newPending;
+    }
+    pendingKeys[numPending++] = key;
+    if (writer != null && !flushScheduled)
+    {
+      flushScheduled = true;
+      writer.postDelayed(flushAction, FLUSH_DELAY);
+    }
+  }
+
+  /**
+   * Get how many times a word has been entered, ignoring case.
+   */
+  public synchronized int getCount(char word[], int length)
+  {
+    int mask = keys.length-1;
+    long key = hashWord(word, length);
+    for (int slot = (int) key&mask; keys[slot] != 0; slot = (slot+1)&mask)
+      if (keys[slot] == key)
+        return counts[slot];
+    return 0;
+  }
+
+  /**
+   * Get how much to add to the frequency of a word because of how often it has been entered.  Each doubling of
+   * the count adds BOOST_PER_DOUBLING, up to MAX_BOOST.
+   */
+  public int getBoost(char word[], int length)
+  {
+    int count = getCount(word, length);
+    return Math.min(MAX_BOOST, BOOST_PER_DOUBLING*(32-Integer.numberOfLeadingZeros(count)));
+  }
+
+  /**
+   * Write the words entered since the last flush to the log, first rewriting the log if it has grown too long.
+   * If writing fails, the words are kept and written by the next flush.  This should not be called on the main
+   * thread.
+   */
+  public void flush()
+  {
+    long records[];
+    int recordCounts[];
+    int numWritten;
+    long validLength;
+    boolean compact;
+
+    // Copy the records to write while holding the lock, so words entered in the meantime go in the next flush.
+    // Nothing is marked as written until the file has been written.
+
+    synchronized (this)
+    {
+      flushScheduled = false;
+      numWritten = numPending;
+      validLength = (long) numRecords*RECORD_SIZE;
+      compact = (numRecords+numPending > COMPACT_RATIO*size+COMPACT_SLACK);
+      if (compact)
+      {
+        records = new long[size];
+        recordCounts = new int[size];
+        int next = 0;
+        for (int i = 0; i < keys.length; i++)
+          if (keys[i] != 0)
+          {
+            records[next] = keys[i];
+            recordCounts[next++] = counts[i];
+          }
+      }
+      else
+      {
+        if (numPending == 0)
+          return;
+        records = new long[numPending];
+        System.arraycopy(pendingKeys, 0, records, 0, numPending);
+        recordCounts = null;
+      }
+    }
+    try
+    {
+      if (compact)
+      {
+        File temp = new File(file.getPath()+".tmp");
+        writeRecords(temp, 0, records, recordCounts);
+        if (!temp.renameTo(file))
+          throw new IOException("Could not replace "+file);
+      }
+      else
+        writeRecords(file, validLength, records, null);
+    }
+    catch (IOException ex)
+    {
+      Log.d("Flow", "Exception saving word history", ex);
+      synchronized (this)
+      {
+        if (writer != null && !flushScheduled)
+        {
+          flushScheduled = true;
+          writer.postDelayed(flushAction, FLUSH_DELAY);
+        }
+      }
+      return;
+    }
+
+    // Only the words that were written stop being pending.  Any entered since then weren't, so they are moved to
+    // the front of pendingKeys for the next flush.
+
+    synchronized (this)
+    {
+      numRecords = (compact ? records.length : numRecords+numWritten);
+      numPending -= numWritten;
+      System.arraycopy(pendingKeys, numWritten, pendingKeys, 0, numPending);
+    }
+  }
+
+  /**
+   * Write records to a file, starting at an offset.  Anything after the offset is cut off first: part of a record
+   * from a flush that was interrupted, or records from one that failed and will be written again.  Otherwise the
+   * new records would be misaligned, or counted twice.
+   */
+  private static void writeRecords(File file, long offset, long records[], int recordCounts[]) throws IOException
+  {
+    file.getParentFile().mkdirs();
+    RandomAccessFile raf = new RandomAccessFile(file, "rw");
+    try
+    {
+      raf.setLength(offset);
+      raf.seek(offset);
+      DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(raf.getFD())));
+      for (int i = 0; i < records.length; i++)
+      {
+        out.writeLong(records[i]);
+        out.writeInt(recordCounts == null ? 1 : recordCounts[i]);
+      }
+      out.flush();
+    }
+    finally
+    {
+      raf.close();
+    }
+  }
+
+  /**
+   * Add to the count for a word, growing the table when it gets more than half full.
+   */
+  private void add(long key, int count)
+  {
+    if (2*(size+1) > keys.length)
+    {
+      long oldKeys[] = keys;
+      int oldCounts[] = counts;
+      keys = new long[2*oldKeys.length];
+      counts = new int[2*oldKeys.length];
+      size = 0;
+      for (int i = 0; i < oldKeys.length; i++)
+        if (oldKeys[i] != 0)
+          add(oldKeys[i], oldCounts[i]);
+    }
+    int mask = keys.length-1;
+    int slot;
+    for (slot = (int) key&mask; keys[slot] != 0 && keys[slot] != key; slot = (slot+1)&mask)
+      ;
+    if (keys[slot] == 0)
+    {
+      keys[slot] = key;
+      size++;
+    }
+    counts[slot] = (int) Math.min((long) counts[slot]+count, Integer.MAX_VALUE);
+  }
+
+  /**
+   * Hash the lower case letters of a word.  The hash is never 0, which marks an empty slot.
+   */
+  static long hashWord(char word[], int length)
+  {
+    long hash = 0xcbf29ce484222325L;
+    for (int i = 0; i < length; i++)
+    {
+      hash ^= Character.toLowerCase(word[i]);
+      hash *= 0x100000001b3L;
+    }
+    hash ^= hash>>>29;
+    return (hash == 0 ? 1 : hash);
+  }
+}
@@ -0,0 +1,55 @@
+package info.thfr.wolfkeyboard;
+
+/**
+ * Copyright 2019         Thomas Frohwein <11335318+rfht@users.noreply.github.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import java.util.*;
+
+/**
+ * Builds small dictionaries and traces for tests, without needing the raw word lists.
+ */
+class CompiledDictionaries
+{
+  /**
+   * Compile a word list into a dictionary.  The words can be in any order.
+   */
+  static Dictionary create(String words[], int frequencies[])
+  {
+    ArrayList<DictionaryCompiler.SortedWord> wordList = new ArrayList<DictionaryCompiler.SortedWord>();
+    for (int i = 0; i < words.length; i++)
+      wordList.add(new DictionaryCompiler.SortedWord(words[i].toCharArray(), (short) frequencies[i]));
+    Collections.sort(wordList);
+    return new Dictionary(DictionaryCompiler.compile(wordList, DictionaryCompiler.createReplacements(), 0), LanguageModel.EMPTY);
+  }
+
+  /**
+   * Create a trace with one point exactly on each key of a word's trace, and far from every other key.
+   */
+  static Trace createTrace(String keys)
+  {
+    Trace trace = new Trace();
+    for (int i = 0; i < keys.length(); i++)
+    {
+      char key = keys.charAt(i);
+      float distances[] = new float[27];
+      Arrays.fill(distances, 3.0f);
+      distances[key == '\'' ? 26 : key-'a'] = 0.0f;
+      trace.addPoint(i, 0, 1.0f, distances, new ArrayList<TracedKey>());
+    }
+    return trace;
+  }
+}
@@ -0,0 +1,69 @@
+package info.thfr.wolfkeyboard;
+
+/**
+ * Copyright 2019         Thomas Frohwein <11335318+rfht@users.noreply.github.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import org.junit.Test;
+
+import java.util.*;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks that narrowing the completions one character at a time gives the same results as looking each prefix
+ * up from scratch, as characters are typed, deleted and typed again.
+ */
+public class CompletionSessionTest
+{
+  @Test
+  public void sessionMatchesFreshLookups()
+  {
+    ArrayList<String> words = new ArrayList<String>();
+    ArrayList<Integer> frequencies = new ArrayList<Integer>();
+    Dictionary dictionary = CompletionsTest.createDictionary(words, frequencies);
+    Dictionary.CompletionSession session = new Dictionary.CompletionSession();
+
+    // Type a word, delete most of it, and type something else.  "z" matches nothing, so the range becomes
+    // empty, and deleting it makes it non-empty again.
+
+    String steps[] = {"a", "ab", "abc", "abcd", "abcda", "abcd", "abc", "ab", "a", "ad", "adz", "adzb", "adz", "ad",
+        "adc", "Adc", "adcb", "", "b", "bb", "db", "dbaccad", "dbaccadb", "dbaccadbb", "dbaccad", "d"};
+    boolean sawEmpty = false;
+    for (int repeat = 0; repeat < 2; repeat++)
+    {
+      for (String prefix : steps)
+      {
+        String expected[] = dictionary.findWordsStartingWith(prefix);
+        String found[] = dictionary.findWordsStartingWith(prefix, session);
+        assertArrayEquals(prefix, expected, found);
+        assertArrayEquals(prefix, CompletionsTest.findCompletions(words, frequencies, prefix), found);
+        sawEmpty |= (found[0] == null);
+
+        // Changing the results must not change what the session returns later.
+
+        Arrays.fill(found, "x");
+      }
+
+      // Adding a user word has to be reflected even for prefixes the session has already looked up.
+
+      dictionary.setUserWords(UserWords.EMPTY.withWord("adzuki", 250));
+      words.add("adzuki");
+      frequencies.add(250);
+    }
+    assertTrue(sawEmpty);
+  }
+}
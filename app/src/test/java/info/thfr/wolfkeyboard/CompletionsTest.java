@@ -0,0 +1,121 @@
+package info.thfr.wolfkeyboard;
+
+/**
+ * Copyright 2019         Thomas Frohwein <11335318+rfht@users.noreply.github.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import org.junit.Test;
+
+import java.util.*;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks that the completions for a prefix are the most frequent words starting with it, whether they come from
+ * the precomputed table for large ranges or from scanning a small range.
+ */
+public class CompletionsTest
+{
+  static final String ALPHABET = "abcd";
+
+  /**
+   * Create a dictionary of words made from a few letters, so short prefixes have large ranges.  Frequencies
+   * are drawn from a small set, so many words tie.  The words are returned in dictionary order.
+   */
+  static Dictionary createDictionary(ArrayList<String> words, ArrayList<Integer> frequencies)
+  {
+    Random random = new Random(5);
+    TreeMap<String, String> generated = new TreeMap<String, String>();
+    while (generated.size() < 1500)
+    {
+      char word[] = new char[1+random.nextInt(7)];
+      for (int i = 0; i < word.length; i++)
+        word[i] = ALPHABET.charAt(random.nextInt(ALPHABET.length()));
+      String lowerCase = new String(word);
+      if (random.nextInt(10) == 0)
+        word[0] = Character.toUpperCase(word[0]);
+      generated.put(lowerCase, new String(word));
+    }
+    words.addAll(generated.values());
+    int frequencyArray[] = new int[words.size()];
+    for (int i = 0; i < frequencyArray.length; i++)
+    {
+      frequencyArray[i] = 10*random.nextInt(6);
+      frequencies.add(frequencyArray[i]);
+    }
+    return CompiledDictionaries.create(words.toArray(new String[words.size()]), frequencyArray);
+  }
+
+  /**
+   * Find the completions by checking every word.  Words with equal frequencies stay in dictionary order.
+   */
+  static String[] findCompletions(ArrayList<String> words, final ArrayList<Integer> frequencies, String prefix)
+  {
+    ArrayList<Integer> matches = new ArrayList<Integer>();
+    for (int i = 0; i < words.size(); i++)
+      if (words.get(i).toLowerCase().startsWith(prefix.toLowerCase()))
+        matches.add(i);
+    Collections.sort(matches, new Comparator<Integer>()
+    {
+      public int compare(Integer i1, Integer i2)
+      {
+        return frequencies.get(i2)-frequencies.get(i1);
+      }
+    });
+    String completions[] = new String[DictionaryCompiler.NUM_COMPLETIONS];
+    for (int i = 0; i < completions.length && i < matches.size(); i++)
+      completions[i] = words.get(matches.get(i));
+    return completions;
+  }
+
+  static int countWordsStartingWith(ArrayList<String> words, String prefix)
+  {
+    int count = 0;
+    for (String word : words)
+      if (word.toLowerCase().startsWith(prefix))
+        count++;
+    return count;
+  }
+
+  @Test
+  public void completionsMatchScan()
+  {
+    ArrayList<String> words = new ArrayList<String>();
+    ArrayList<Integer> frequencies = new ArrayList<Integer>();
+    Dictionary dictionary = createDictionary(words, frequencies);
+    assertTrue(dictionary.numCompletionRanges > 0);
+    int numLarge = 0, numSmall = 0;
+    ArrayList<String> prefixes = new ArrayList<String>();
+    prefixes.add("");
+    for (int i = 0; i < prefixes.size(); i++)
+    {
+      String prefix = prefixes.get(i);
+      if (prefix.length() < 5)
+        for (int j = 0; j < ALPHABET.length(); j++)
+          prefixes.add(prefix+ALPHABET.charAt(j));
+      if (prefix.length() == 0)
+        continue;
+      if (countWordsStartingWith(words, prefix) > DictionaryCompiler.MIN_COMPLETION_RANGE)
+        numLarge++;
+      else
+        numSmall++;
+      assertArrayEquals(prefix, findCompletions(words, frequencies, prefix), dictionary.findWordsStartingWith(prefix));
+      assertArrayEquals(prefix, findCompletions(words, frequencies, prefix), dictionary.findWordsStartingWith(prefix.toUpperCase()));
+    }
+    assertTrue(numLarge > 10);
+    assertTrue(numSmall > 100);
+  }
+}
@@ -0,0 +1,147 @@
+package info.thfr.wolfkeyboard;
+
+/**
+ * Copyright 2019         Thomas Frohwein <11335318+rfht@users.noreply.github.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import org.junit.Test;
+
+import java.util.*;
+
+import static org.junit.Assert.*;
+
+/**
+ * Compares the distances looked up in a KeyDistanceField with the exact ones.
+ */
+public class KeyDistanceFieldTest
+{
+  static final int SPACING = 154;
+  static final int WIDTH = 1080;
+  static final int HEIGHT = 800;
+  private static final float TOLERANCE = 0.05f;
+
+  @Test
+  public void interpolatedDistancesAreCloseToExact()
+  {
+    KeyDistanceField field = createField(Flow.baseKeyboard.slideCharIndex);
+    Random random = new Random(1);
+    float distances[] = new float[27];
+    float exact[] = new float[27];
+    for (int i = 0; i < 20000; i++)
+    {
+      float x = WIDTH*random.nextFloat();
+      float y = HEIGHT*random.nextFloat();
+      field.findKeyDistances(x, y, distances);
+      field.findExactKeyDistances(x, y, exact, 0);
+      for (int key = 0; key < 27; key++)
+        assertEquals(exact[key], distances[key], TOLERANCE);
+    }
+  }
+
+  @Test
+  public void nearKeysIncludeEveryViaKey()
+  {
+    KeyDistanceField field = createField(Flow.baseKeyboard.slideCharIndex);
+    Random random = new Random(2);
+    float distances[] = new float[27];
+    for (int i = 0; i < 20000; i++)
+    {
+      int nearKeys = field.findKeyDistances(WIDTH*random.nextFloat(), HEIGHT*random.nextFloat(), distances);
+      for (int key = 0; key < 27; key++)
+        if (distances[key] <= KeyDistanceField.VIA_KEY_DISTANCE)
+          assertTrue((nearKeys & (1<<key)) != 0);
+    }
+  }
+
+  @Test
+  public void keyCentersHaveZeroDistance()
+  {
+    int slideCharIndex[] = Flow.baseKeyboard.slideCharIndex;
+    KeyDistanceField field = createField(slideCharIndex);
+    float distances[] = new float[27];
+    for (int i = 0; i < slideCharIndex.length; i++)
+      if (slideCharIndex[i] > -1)
+      {
+        field.findKeyDistances(getKeyX(i), getKeyY(i), distances);
+        assertEquals(0.0f, distances[slideCharIndex[i]], 0.0f);
+      }
+  }
+
+  @Test
+  public void pointsOutsideKeyboardAreExact()
+  {
+    KeyDistanceField field = createField(Flow.baseKeyboard.slideCharIndex);
+    float distances[] = new float[27];
+    float exact[] = new float[27];
+    float points[][] = {{-20, 300}, {WIDTH+SPACING, 100}, {500, -40}, {200, HEIGHT+SPACING}};
+    for (float point[] : points)
+    {
+      int nearKeys = field.findKeyDistances(point[0], point[1], distances);
+      field.findExactKeyDistances(point[0], point[1], exact, 0);
+      for (int key = 0; key < 27; key++)
+      {
+        assertEquals(Float.floatToIntBits(exact[key]), Float.floatToIntBits(distances[key]));
+        assertEquals(exact[key] <= KeyDistanceField.VIA_KEY_DISTANCE, (nearKeys & (1<<key)) != 0);
+      }
+    }
+  }
+
+  @Test
+  public void missingKeysAreFarAway()
+  {
+    int slideCharIndex[] = Flow.baseKeyboard.slideCharIndex.clone();
+    int missing = -1;
+    for (int i = 0; i < slideCharIndex.length && missing == -1; i++)
+      if (slideCharIndex[i] > -1)
+      {
+        missing = slideCharIndex[i];
+        slideCharIndex[i] = -1;
+      }
+    KeyDistanceField field = createField(slideCharIndex);
+    float distances[] = new float[27];
+    Random random = new Random(3);
+    for (int i = 0; i < 1000; i++)
+    {
+      int nearKeys = field.findKeyDistances(WIDTH*random.nextFloat(), HEIGHT*random.nextFloat(), distances);
+      assertEquals(Float.MAX_VALUE, distances[missing], 0.0f);
+      assertEquals(0, nearKeys & (1<<missing));
+    }
+  }
+
+  static KeyDistanceField createField(int slideCharIndex[])
+  {
+    // Lay out the keys the way KeyboardView.createBackground() does.
+
+    float keyX[] = new float[35];
+    float keyY[] = new float[35];
+    for (int i = 0; i < 35; i++)
+    {
+      keyX[i] = getKeyX(i);
+      keyY[i] = getKeyY(i);
+    }
+    return new KeyDistanceField(keyX, keyY, slideCharIndex, SPACING, WIDTH, HEIGHT);
+  }
+
+  private static int getKeyX(int index)
+  {
+    return (index%7)*SPACING+(WIDTH-6*SPACING)/2;
+  }
+
+  private static int getKeyY(int index)
+  {
+    return HEIGHT-((4-index/7)*SPACING+(int) (HEIGHT-4.3f*SPACING)/2);
+  }
+}
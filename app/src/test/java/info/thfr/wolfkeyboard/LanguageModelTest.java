@@ -0,0 +1,124 @@
+package info.thfr.wolfkeyboard;
+
+/**
+ * Copyright 2019         Thomas Frohwein <11335318+rfht@users.noreply.github.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import org.junit.Test;
+
+import java.io.*;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks that a compiled LanguageModel gives the probabilities of the n-grams it was compiled from, and that the
+ * previous words are found correctly in text.
+ */
+public class LanguageModelTest
+{
+  private static final String NGRAMS =
+      "6 of the\n"+
+      "2 of course\n"+
+      "8 the end\n"+
+      "1 of The\n"+
+      "3 end of the\n"+
+      "1 end of course\n"+
+      "not a count\n"+
+      "5 too many words in this line\n";
+
+  @Test
+  public void boostsMatchProbabilities() throws IOException
+  {
+    LanguageModel model = new LanguageModel(LanguageModel.compile(new StringReader(NGRAMS), 0));
+    int of = model.findWord("Of");
+    int the = model.findWord("the");
+    int course = model.findWord("COURSE");
+    int end = model.findWord("end");
+    assertEquals(4, model.numWords);
+    assertEquals(-1, model.findWord("many"));
+
+    // "the" follows "of" 7 times out of 9, and "course" 2 times.  "end" always follows "the".
+
+    assertEquals(LanguageModel.getBoost(7, 9), model.getBoost(-1, of, the));
+    assertEquals(LanguageModel.getBoost(2, 9), model.getBoost(-1, of, course));
+    assertEquals(255, model.getBoost(-1, the, end));
+    assertEquals(255-2*LanguageModel.BOOST_PER_HALVING, LanguageModel.getBoost(1, 4));
+
+    // Trigrams are used when there is one, and otherwise the bigram.
+
+    assertEquals(LanguageModel.getBoost(3, 4), model.getBoost(end, of, the));
+    assertEquals(LanguageModel.getBoost(1, 4), model.getBoost(end, of, course));
+    assertEquals(LanguageModel.getBoost(7, 9), model.getBoost(the, of, the));
+    assertEquals(0, model.getBoost(-1, the, of));
+    assertEquals(0, model.getBoost(-1, -1, the));
+  }
+
+  @Test
+  public void successorsAreRankedByBoost() throws IOException
+  {
+    LanguageModel model = new LanguageModel(LanguageModel.compile(new StringReader(NGRAMS), 0));
+    int of = model.findWord("of");
+    int the = model.findWord("the");
+    int end = model.findWord("end");
+    int words[] = new int[3];
+    assertEquals(2, model.findSuccessors(-1, of, words));
+    assertEquals("the", model.getWord(words[0]));
+    assertEquals("course", model.getWord(words[1]));
+    assertEquals(1, model.findSuccessors(-1, the, words));
+    assertEquals("end", model.getWord(words[0]));
+    assertEquals(0, model.findSuccessors(-1, end, words));
+    assertEquals(0, model.findSuccessors(-1, -1, words));
+
+    // The trigrams override the bigrams for the words they have, and only as many words as fit are returned.
+
+    assertEquals(2, model.findSuccessors(end, of, words));
+    assertEquals("the", model.getWord(words[0]));
+    assertEquals("course", model.getWord(words[1]));
+    words = new int[1];
+    assertEquals(1, model.findSuccessors(the, of, words));
+    assertEquals("the", model.getWord(words[0]));
+  }
+
+  @Test
+  public void emptyModelFindsNothing()
+  {
+    assertEquals(-1, LanguageModel.EMPTY.findWord("the"));
+    assertEquals(0, LanguageModel.EMPTY.getBoost(-1, -1, -1));
+    assertEquals(0, LanguageModel.EMPTY.findSuccessors(-1, 0, new int[5]));
+  }
+
+  @Test
+  public void previousWordsStopAtPunctuation()
+  {
+    assertPreviousWords(null, null, null);
+    assertPreviousWords(null, null, "");
+    assertPreviousWords(null, "hello", "hello");
+    assertPreviousWords("see", "you", "I'll see you");
+    assertPreviousWords("see", "you", "see you  \n");
+    assertPreviousWords(null, "The", "It ended. The");
+    assertPreviousWords(null, null, "It ended.");
+    assertPreviousWords(null, null, "It ended. ");
+    assertPreviousWords("well-known", "don't", "a well-known don't");
+    assertPreviousWords(null, "world", "(world");
+  }
+
+  private static void assertPreviousWords(String expected0, String expected1, String text)
+  {
+    String words[] = LanguageModel.getPreviousWords(text);
+    assertEquals(expected0, words[0]);
+    assertEquals(expected1, words[1]);
+  }
+}
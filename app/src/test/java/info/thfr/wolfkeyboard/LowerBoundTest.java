@@ -0,0 +1,87 @@
+package info.thfr.wolfkeyboard;
+
+/**
+ * Copyright 2019         Thomas Frohwein <11335318+rfht@users.noreply.github.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import org.junit.Test;
+
+import java.util.*;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks that the lower bound used to skip words before scoring them is never above their actual score.
+ */
+public class LowerBoundTest
+{
+  private static final String ALPHABET = "abcdefghijklmnopqrstuvwxyz'";
+
+  @Test
+  public void boundIsBelowScore()
+  {
+    Random random = new Random(1);
+    int numPruned = 0;
+    for (int t = 0; t < 200; t++)
+    {
+      Trace trace = createTrace(random, 2+random.nextInt(14));
+      Dictionary.TraceCosts costs = new Dictionary.TraceCosts(trace);
+      Dictionary.ScoreCache cache = new Dictionary.ScoreCache();
+      cache.reset(trace.size(), Math.max((int) (trace.size()*1.26f)+3, DictionaryCompiler.LONG_PREFIX_LENGTH));
+      for (int w = 0; w < 50; w++)
+      {
+        char word[] = new char[1+random.nextInt(Math.min(trace.size()+2, 12))];
+        for (int i = 0; i < word.length; i++)
+          word[i] = ALPHABET.charAt(random.nextInt(random.nextBoolean() ? 6 : ALPHABET.length()));
+        float score = Dictionary.scoreWord(word, word.length, costs, 1000.0f, cache);
+        float bound = costs.getLowerBound(word[0], word[word.length-1], DictionaryCompiler.getKeyMask(word));
+        assertTrue(bound+" > "+score+" for "+new String(word), bound <= score+0.001f);
+        if (bound > 1.0f)
+          numPruned++;
+      }
+    }
+
+    // Make sure the bound isn't trivially zero.
+
+    assertTrue(numPruned > 1000);
+  }
+
+  private static Trace createTrace(Random random, int length)
+  {
+    // Points are close to a few of the keys, and pass over a few others.
+
+    Trace trace = new Trace();
+    float distances[] = new float[27];
+    for (int i = 0; i < length; i++)
+    {
+      for (int j = 0; j < distances.length; j++)
+        distances[j] = (random.nextInt(8) == 0 ? 0.3f*random.nextFloat() : 0.5f+2.0f*random.nextFloat());
+      ArrayList<TracedKey> keys = new ArrayList<TracedKey>();
+      for (int j = 0; j < 4; j++)
+        if (random.nextBoolean())
+        {
+          char key = ALPHABET.charAt(random.nextInt(ALPHABET.length()));
+          boolean found = false;
+          for (TracedKey k : keys)
+            found |= (k.key == key);
+          if (!found)
+            keys.add(new TracedKey(key, 0.5f*random.nextFloat(), random.nextInt(1000)));
+        }
+      trace.addPoint(random.nextFloat(), random.nextFloat(), 0.5f+0.5f*random.nextFloat(), distances, keys);
+    }
+    return trace;
+  }
+}
@@ -0,0 +1,115 @@
+package info.thfr.wolfkeyboard;
+
+/**
+ * Copyright 2019         Thomas Frohwein <11335318+rfht@users.noreply.github.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/**
+ * The scorer Dictionary used before it had a ScoreCache or TraceCosts.  It reads the key and via key distances
+ * straight from the TracePoints and scores every part of a word from scratch, so it shares none of the code that
+ * the tests compare it with.  Dictionary's scores must match it exactly whenever they are below the cutoff.
+ */
+class ReferenceScorer
+{
+  static float scorePrefix(char word[], int length, TracePoint trace[], float cutoff)
+  {
+    int minTrace = (length-1)/2;
+    int maxTrace = Math.min(trace.length, (int) Math.ceil(length*1.25));
+    TracePoint first = trace[0];
+    cutoff -= first.getKeyDistance(word[0])*first.weight;
+    float bestScore = cutoff+0.01f;
+    for (int i = minTrace; i < maxTrace; i++)
+    {
+      float score = scoreWord(word, trace, 0, length-1, 0, i, cutoff);
+      if (score < bestScore)
+      {
+        bestScore = score;
+        cutoff = bestScore;
+      }
+    }
+    return first.getKeyDistance(word[0])*first.weight+bestScore;
+  }
+
+  static float scoreWord(char word[], int length, TracePoint trace[], float cutoff)
+  {
+    TracePoint first = trace[0];
+    cutoff -= first.getKeyDistance(word[0])*first.weight;
+    return first.getKeyDistance(word[0])*first.weight+scoreWord(word, trace, 0, length-1, 0, trace.length-1, cutoff);
+  }
+
+  private static float scoreWord(char word[], TracePoint trace[], int wordStart, int wordEnd, int traceStart, int traceEnd, float cutoff)
+  {
+    // Split the trace in half, and try every way of splitting the word between the halves.
+
+    int length = traceEnd-traceStart;
+    if (length < 2)
+      return scoreSegment(word, trace, wordStart, wordEnd, traceEnd);
+    float bestScore = cutoff+0.01f;
+    int mid = traceStart+length/2;
+    int min = length/4;
+    for (int i = wordStart+min; i <= wordEnd-min; i++)
+    {
+      float score = scoreWord(word, trace, wordStart, i, traceStart, mid, cutoff);
+      if (score < cutoff)
+      {
+        score += scoreWord(word, trace, i, wordEnd, mid, traceEnd, cutoff-score);
+        if (score < bestScore)
+        {
+          bestScore = score;
+          cutoff = bestScore;
+        }
+      }
+    }
+    return bestScore;
+  }
+
+  private static float scoreSegment(char word[], TracePoint trace[], int wordStart, int wordEnd, int traceEnd)
+  {
+    float score = 0.0f;
+    char c = word[wordEnd];
+    if (traceEnd == 0)
+      score += wordEnd;
+    else if (wordStart < wordEnd)
+    {
+      char cprev = word[wordStart];
+      TracePoint point = trace[traceEnd-1];
+      int lastIndex = -1;
+      for (int currentChar = wordStart+1; currentChar < wordEnd; currentChar++)
+      {
+        char cvia = word[currentChar];
+        if (cvia != cprev)
+        {
+          int index = point.getViaKeyIndex(cvia);
+          if (cvia != c)
+          {
+            if (index == -1)
+            {
+              score += Dictionary.MISSING_VIA_LETTER;
+              continue;
+            }
+            score += Dictionary.VIA_DISTANCE_MULTIPLIER*point.viaKeys[index].nearestDistance;
+            if (index < lastIndex)
+              score += Dictionary.UNORDERED_VIA_COST;
+          }
+          lastIndex = index;
+        }
+      }
+    }
+    TracePoint point = trace[traceEnd];
+    score += point.getKeyDistance(c)*point.weight;
+    return score;
+  }
+}
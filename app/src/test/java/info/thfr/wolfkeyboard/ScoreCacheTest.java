@@ -0,0 +1,152 @@
+package info.thfr.wolfkeyboard;
+
+/**
+ * Copyright 2019         Thomas Frohwein <11335318+rfht@users.noreply.github.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import org.junit.Test;
+
+import java.util.*;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks that scores computed with a cache that is reused between words and traces are exactly the same as
+ * the ones computed with a fresh cache for each word, and as the ones from ReferenceScorer.
+ */
+public class ScoreCacheTest
+{
+  private static final int LONG_PREFIX_LENGTH = DictionaryCompiler.LONG_PREFIX_LENGTH;
+
+  @Test
+  public void reusedCacheMatchesFreshCache()
+  {
+    Random random = new Random(1);
+    Dictionary.ScoreCache reused = new Dictionary.ScoreCache();
+    List<char[]> words = createWords(random, 200, 11);
+    for (int t = 0; t < 40; t++)
+    {
+      TracePoint trace[] = createTrace(random, 7+random.nextInt(10));
+      Dictionary.TraceCosts costs = new Dictionary.TraceCosts(new Trace(trace));
+      int maxLength = Math.max((int) (trace.length*1.26f)+3, LONG_PREFIX_LENGTH);
+      reused.reset(trace.length, maxLength);
+      float cutoff = 100.0f;
+      for (char word[] : repeatLongest(words))
+      {
+        Dictionary.ScoreCache fresh = new Dictionary.ScoreCache();
+        fresh.reset(trace.length, maxLength);
+        float expected = ReferenceScorer.scoreWord(word, word.length, trace, cutoff);
+        assertSameScore(expected, Dictionary.scoreWord(word, word.length, costs, cutoff, fresh), cutoff);
+        assertSameScore(expected, Dictionary.scoreWord(word, word.length, costs, cutoff, reused), cutoff);
+
+        // Lower the cutoff the way guessWord() does, so some scores are only lower bounds.
+
+        if (expected < cutoff)
+          cutoff = Math.max(expected+0.5f, 1.0f);
+      }
+    }
+  }
+
+  @Test
+  public void reusedCacheMatchesFreshCacheForPrefixes()
+  {
+    Random random = new Random(2);
+    Dictionary.ScoreCache reused = new Dictionary.ScoreCache();
+    List<char[]> words = createWords(random, 200, LONG_PREFIX_LENGTH);
+    for (int t = 0; t < 40; t++)
+    {
+      TracePoint trace[] = createTrace(random, 2+random.nextInt(16));
+      Dictionary.TraceCosts costs = new Dictionary.TraceCosts(new Trace(trace));
+      int maxLength = Math.max((int) (trace.length*1.26f)+3, LONG_PREFIX_LENGTH);
+      reused.reset(trace.length, maxLength);
+      for (int length = 5; length <= LONG_PREFIX_LENGTH; length += 2)
+      {
+        float cutoff = 100.0f;
+        for (char word[] : repeatLongest(words))
+        {
+          if (word.length < length)
+            continue;
+          Dictionary.ScoreCache fresh = new Dictionary.ScoreCache();
+          fresh.reset(trace.length, maxLength);
+          float expected = ReferenceScorer.scorePrefix(word, length, trace, cutoff);
+          assertSameScore(expected, Dictionary.scorePrefix(word, length, costs, cutoff, fresh), cutoff);
+          assertSameScore(expected, Dictionary.scorePrefix(word, length, costs, cutoff, reused), cutoff);
+          if (expected < cutoff)
+            cutoff = Math.max(expected+0.5f, 1.0f);
+        }
+      }
+    }
+  }
+
+  private static void assertSameScore(float expected, float actual, float cutoff)
+  {
+    if (expected < cutoff)
+      assertEquals(Float.floatToIntBits(expected), Float.floatToIntBits(actual));
+    else
+      assertTrue(actual >= cutoff);
+  }
+
+  private static List<char[]> repeatLongest(List<char[]> words)
+  {
+    // Score the longest word before and after the others, so every trace starts with the word that was scored
+    // last against the previous one.  This checks that nothing is kept from the previous trace.
+
+    char longest[] = words.get(0);
+    for (char word[] : words)
+      if (word.length > longest.length)
+        longest = word;
+    List<char[]> order = new ArrayList<char[]>(words);
+    order.add(0, longest);
+    order.add(longest);
+    return order;
+  }
+
+  private static TracePoint[] createTrace(Random random, int length)
+  {
+    TracePoint trace[] = new TracePoint[length];
+    for (int i = 0; i < length; i++)
+    {
+      TracePoint point = new TracePoint(random.nextFloat(), random.nextFloat());
+      for (int j = 0; j < point.keyDistances.length; j++)
+        point.keyDistances[j] = 1.5f*random.nextFloat();
+      for (char c = 'a'; c <= 'h'; c++)
+        if (random.nextInt(3) == 0)
+          point.addViaKey(c, 0.5f*random.nextFloat(), random.nextInt(1000));
+      Collections.sort(point.viaKeyList);
+      point.finalizeViaKeys();
+      point.weight = 0.5f+0.5f*random.nextFloat();
+      trace[i] = point;
+    }
+    return trace;
+  }
+
+  private static List<char[]> createWords(Random random, int count, int maxLength)
+  {
+    // Use a small alphabet so that many of the words share prefixes, and score them in sorted order like the
+    // dictionary does.
+
+    List<char[]> words = new ArrayList<char[]>();
+    for (int i = 0; i < count; i++)
+    {
+      char word[] = new char[2+random.nextInt(maxLength-1)];
+      for (int j = 0; j < word.length; j++)
+        word[j] = (char) ('a'+random.nextInt(8));
+      words.add(word);
+    }
+    Collections.sort(words, Dictionary.wordComparator);
+    return words;
+  }
+}
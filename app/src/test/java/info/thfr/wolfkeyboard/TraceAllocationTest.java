@@ -0,0 +1,158 @@
+package info.thfr.wolfkeyboard;
+
+/**
+ * Copyright 2019         Thomas Frohwein <11335318+rfht@users.noreply.github.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import org.junit.Test;
+
+import java.lang.management.*;
+import java.util.*;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks that the objects TouchListener reuses while a trace is drawn behave like new ones, and that drawing a
+ * trace the way TouchListener does, through GestureTrace, doesn't allocate anything.
+ */
+public class TraceAllocationTest
+{
+  private static final int NUM_SAMPLES = 400;
+  private static final int ALLOCATION_BUDGET = 1024;
+
+  private static final int SPACING = KeyDistanceFieldTest.SPACING;
+
+  private final GestureTrace gesture = new GestureTrace();
+  private final TraceSimplifier simplifier = new TraceSimplifier();
+  private final KeyDistanceField field = KeyDistanceFieldTest.createField(Flow.baseKeyboard.slideCharIndex);
+  private final Trace start = new Trace(Dictionary.PREFIX_TRACE_LENGTH);
+  private final Trace decoded = new Trace();
+  private final float sampleX[] = new float[NUM_SAMPLES];
+  private final float sampleY[] = new float[NUM_SAMPLES];
+  private final long sampleTime[] = new long[NUM_SAMPLES];
+  private int numStartsMatched;
+
+  @Test
+  public void gestureDoesNotAllocate()
+  {
+    // Move across the keyboard at a varying speed, so points are started and finalized all along the gesture.
+
+    Random random = new Random(1);
+    float x = KeyDistanceFieldTest.WIDTH/2;
+    float y = KeyDistanceFieldTest.HEIGHT/2;
+    for (int i = 0; i < NUM_SAMPLES; i++)
+    {
+      float step = (i%10 < 5 ? 0.05f : 0.5f)*SPACING;
+      x = Math.max(0, Math.min(KeyDistanceFieldTest.WIDTH-1, x+step*(2*random.nextFloat()-1)));
+      y = Math.max(0, Math.min(KeyDistanceFieldTest.HEIGHT-1, y+step*(2*random.nextFloat()-1)));
+      sampleX[i] = x;
+      sampleY[i] = y;
+      sampleTime[i] = 8*i;
+    }
+
+    // The first gestures create the objects that are reused by later ones.  Measure a few times and keep the
+    // smallest amount, since the JVM can occasionally allocate on this thread for its own purposes.  Allocating
+    // anything for each sample would exceed the budget every time.
+
+    for (int i = 0; i < 20; i++)
+      drawGesture();
+    long allocated = Long.MAX_VALUE;
+    for (int round = 0; round < 3; round++)
+    {
+      long before = getAllocatedBytes();
+      for (int i = 0; i < 50; i++)
+        drawGesture();
+      allocated = Math.min(allocated, getAllocatedBytes()-before);
+    }
+    assertTrue("Drawing traces allocated "+allocated+" bytes", allocated < ALLOCATION_BUDGET);
+
+    // Every gesture got far enough for its start to be matched, and kept more than a few points.
+
+    assertEquals(170, numStartsMatched);
+    assertTrue(decoded.size() > Dictionary.PREFIX_TRACE_LENGTH);
+    assertEquals(Dictionary.PREFIX_TRACE_LENGTH, start.size());
+  }
+
+  @Test
+  public void resetPointMatchesNewPoint()
+  {
+    TracePoint used = new TracePoint(10, 20);
+    used.addViaKey('a', 0.3f, 5);
+    used.addViaKey('q', 0.1f, 7);
+    used.keyDistances[3] = 0.2f;
+    used.weight = 0.6f;
+    Collections.sort(used.viaKeyList);
+    used.finalizeViaKeys();
+    used.reset(30, 40);
+    used.addViaKey('s', 0.4f, 9);
+    TracePoint fresh = new TracePoint(30, 40);
+    fresh.addViaKey('s', 0.4f, 9);
+    used.finalizeViaKeys();
+    fresh.finalizeViaKeys();
+    TracePoints.assertSamePoint(fresh, used);
+    assertEquals(-1, used.getViaKeyIndex('a'));
+    assertEquals(-1, used.getViaKeyIndex('q'));
+  }
+
+  @Test
+  public void displayedTraceKeepsRecentPoints()
+  {
+    DisplayedTrace displayed = new DisplayedTrace();
+    for (int i = 0; i < 2000; i++)
+    {
+      displayed.removeBefore(i-300);
+      displayed.add(i, -i, i);
+    }
+    assertEquals(301, displayed.size());
+    for (int i = 0; i < displayed.size(); i++)
+    {
+      assertEquals(1699+i, displayed.getX(i));
+      assertEquals(-1699-i, displayed.getY(i));
+    }
+
+    // Add enough points without removing any that the buffer has to grow.
+
+    for (int i = 2000; i < 3000; i++)
+      displayed.add(i, -i, i);
+    assertEquals(1301, displayed.size());
+    for (int i = 0; i < displayed.size(); i++)
+      assertEquals(1699+i, displayed.getX(i));
+    displayed.clear();
+    assertEquals(0, displayed.size());
+  }
+
+  private void drawGesture()
+  {
+    // Process the samples the way TouchListener.onTouch() and finishTrace() do, including copying the start of
+    // the trace to be matched while it is drawn, and copying the whole trace to be decoded.
+
+    gesture.start(sampleX[0], sampleY[0], sampleTime[0]);
+    for (int s = 1; s < NUM_SAMPLES; s++)
+      if (gesture.addSample(sampleX[s], sampleY[s], sampleTime[s], field, SPACING) && gesture.getNumFinalized() == Dictionary.PREFIX_TRACE_LENGTH+2)
+      {
+        gesture.copyStart(start, field);
+        numStartsMatched++;
+      }
+    simplifier.simplify(gesture.points, gesture.getNumFinalized(), SPACING, gesture.unusedPoints);
+    gesture.copyTo(decoded, field);
+  }
+
+  private static long getAllocatedBytes()
+  {
+    com.sun.management.ThreadMXBean bean = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+    return bean.getThreadAllocatedBytes(Thread.currentThread().getId());
+  }
+}
@@ -0,0 +1,106 @@
+package info.thfr.wolfkeyboard;
+
+/**
+ * Copyright 2019         Thomas Frohwein <11335318+rfht@users.noreply.github.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import org.junit.Test;
+
+import java.util.*;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks that words are found through the trace hash table, including words whose traces land in the same slot,
+ * words that differ only in case or accents, and words that are only in the user dictionary.
+ */
+public class TraceHashTest
+{
+  private static final String ALPHABET = "abcdefghijklmnopqrstuvwxyz'";
+
+  @Test
+  public void everyWordIsFound()
+  {
+    // Generate enough distinct words that many of them have to share slots.
+
+    Random random = new Random(2);
+    HashMap<String, Integer> generated = new HashMap<String, Integer>();
+    while (generated.size() < 2000)
+    {
+      char word[] = new char[1+random.nextInt(10)];
+      for (int i = 0; i < word.length; i++)
+        word[i] = ALPHABET.charAt(random.nextInt(ALPHABET.length()));
+      generated.put(new String(word), random.nextInt(256));
+    }
+    String words[] = generated.keySet().toArray(new String[generated.size()]);
+    int frequencies[] = new int[words.length];
+    for (int i = 0; i < words.length; i++)
+      frequencies[i] = generated.get(words[i]);
+    Dictionary dictionary = CompiledDictionaries.create(words, frequencies);
+
+    int hashSize = DictionaryCompiler.getTraceHashSize(words.length);
+    HashSet<Integer> slots = new HashSet<Integer>();
+    for (String word : words)
+      slots.add(DictionaryCompiler.hashTrace(word.toCharArray(), word.length())&(hashSize-1));
+    assertTrue(slots.size() < words.length);
+    for (int i = 0; i < words.length; i++)
+    {
+      assertEquals(words[i], frequencies[i], dictionary.getWordFrequency(words[i]));
+      assertTrue(dictionary.containsTrace(words[i]));
+    }
+
+    // Words that aren't in the dictionary aren't found, even when their traces land in used slots.
+
+    int numMissing = 0;
+    while (numMissing < 2000)
+    {
+      char word[] = new char[1+random.nextInt(10)];
+      for (int i = 0; i < word.length; i++)
+        word[i] = ALPHABET.charAt(random.nextInt(ALPHABET.length()));
+      if (generated.containsKey(new String(word)))
+        continue;
+      numMissing++;
+      assertEquals(-1, dictionary.getWordFrequency(new String(word)));
+      assertFalse(dictionary.containsTrace(new String(word)));
+    }
+  }
+
+  @Test
+  public void variantsAndUserWordsAreFound()
+  {
+    Dictionary dictionary = CompiledDictionaries.create(new String[] {"may", "May", "résumé", "resume", "zygote", "cat"}, new int[] {30, 200, 150, 100, 0, 120});
+
+    // Case is ignored, and the most frequent word that matches is used.  Accents are not ignored.
+
+    assertEquals(200, dictionary.getWordFrequency("may"));
+    assertEquals(200, dictionary.getWordFrequency("MAY"));
+    assertEquals(150, dictionary.getWordFrequency("Résumé"));
+    assertEquals(100, dictionary.getWordFrequency("resume"));
+    assertEquals(-1, dictionary.getWordFrequency("resumé"));
+    assertTrue(dictionary.containsTrace("resumé"));
+    assertEquals(0, dictionary.getWordFrequency("zygote"));
+
+    // Words only in the user dictionary are found there, and a user word can make a word more frequent.
+
+    assertEquals(-1, dictionary.getWordFrequency("wolf"));
+    assertFalse(dictionary.containsTrace("Wolf"));
+    dictionary.setUserWords(UserWords.EMPTY.withWord("wolf", 250).withWord("Cat", 250));
+    assertEquals(250, dictionary.getWordFrequency("WOLF"));
+    assertTrue(dictionary.containsTrace("Wolf"));
+    assertEquals(250, dictionary.getWordFrequency("cat"));
+    assertEquals(-1, dictionary.getWordFrequency("wolves"));
+  }
+}
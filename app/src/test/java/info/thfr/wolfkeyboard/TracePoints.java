@@ -0,0 +1,43 @@
+package info.thfr.wolfkeyboard;
+
+/**
+ * Copyright 2019         Thomas Frohwein <11335318+rfht@users.noreply.github.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks on TracePoints for the tests that reuse them.
+ */
+class TracePoints
+{
+  /**
+   * Check that a point would be scored the same as another one.  Both must have been finalized.
+   */
+  static void assertSamePoint(TracePoint expected, TracePoint actual)
+  {
+    assertEquals(expected.x, actual.x, 0.0f);
+    assertEquals(expected.y, actual.y, 0.0f);
+    assertEquals(expected.weight, actual.weight, 0.0f);
+    assertArrayEquals(expected.keyDistances, actual.keyDistances, 0.0f);
+    assertEquals(expected.viaKeys.length, actual.viaKeys.length);
+    for (int i = 0; i < expected.viaKeys.length; i++)
+    {
+      assertEquals(expected.viaKeys[i].key, actual.viaKeys[i].key);
+      assertEquals(expected.viaKeys[i].nearestDistance, actual.viaKeys[i].nearestDistance, 0.0f);
+    }
+  }
+}
@@ -0,0 +1,153 @@
+package info.thfr.wolfkeyboard;
+
+/**
+ * Copyright 2019         Thomas Frohwein <11335318+rfht@users.noreply.github.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import org.junit.Test;
+
+import java.util.*;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks that TraceSimplifier with its default settings processes traces the same way TouchListener.finishTrace()
+ * used to, by removing points from the list one at a time.
+ */
+public class TraceSimplifierTest
+{
+  private static final float SPACING = 100;
+
+  @Test
+  public void defaultSettingsMatchOriginalProcessing()
+  {
+    TraceSimplifier simplifier = new TraceSimplifier();
+    for (int seed = 0; seed < 500; seed++)
+    {
+      ArrayList<TracePoint> expected = createTrace(new Random(seed));
+      ArrayList<TracePoint> actual = createTrace(new Random(seed));
+      int numPoints = expected.size();
+      simplifyOriginal(expected);
+      ArrayList<TracePoint> removed = new ArrayList<TracePoint>();
+      simplifier.simplify(actual, 0, SPACING, removed);
+      assertEquals(expected.size(), actual.size());
+      assertEquals(numPoints, actual.size()+removed.size());
+      for (int i = 0; i < expected.size(); i++)
+      {
+        expected.get(i).finalizeViaKeys();
+        actual.get(i).finalizeViaKeys();
+        TracePoints.assertSamePoint(expected.get(i), actual.get(i));
+      }
+    }
+  }
+
+  @Test
+  public void straightTraceKeepsMinimumPoints()
+  {
+    ArrayList<TracePoint> trace = new ArrayList<TracePoint>();
+    for (int i = 0; i < 30; i++)
+      trace.add(new TracePoint(i*SPACING, 0));
+    new TraceSimplifier(0.5f, 0.95f, 6).simplify(trace, 0, SPACING, new ArrayList<TracePoint>());
+    assertEquals(6, trace.size());
+    assertEquals(0.0f, trace.get(0).x, 0.0f);
+    assertEquals(29*SPACING, trace.get(5).x, 0.0f);
+  }
+
+  @Test
+  public void cornersAreKept()
+  {
+    ArrayList<TracePoint> trace = new ArrayList<TracePoint>();
+    for (int i = 0; i < 20; i++)
+      trace.add(new TracePoint(i*SPACING, 0));
+    for (int i = 1; i < 20; i++)
+      trace.add(new TracePoint(19*SPACING, i*SPACING));
+    new TraceSimplifier().simplify(trace, 0, SPACING, new ArrayList<TracePoint>());
+    boolean foundCorner = false;
+    for (TracePoint p : trace)
+      if (p.x == 19*SPACING && p.y == 0)
+      {
+        foundCorner = true;
+        assertEquals(0.75f, p.weight, 1e-6f);
+      }
+    assertTrue(foundCorner);
+  }
+
+  private static ArrayList<TracePoint> createTrace(Random random)
+  {
+    // Wander between random keys, with a few points along the way and some that are close together.
+
+    ArrayList<TracePoint> trace = new ArrayList<TracePoint>();
+    float x = SPACING*random.nextInt(7);
+    float y = SPACING*random.nextInt(5);
+    int numKeys = 2+random.nextInt(12);
+    for (int k = 0; k < numKeys; k++)
+    {
+      float nextX = SPACING*random.nextInt(7);
+      float nextY = SPACING*random.nextInt(5);
+      int steps = 1+random.nextInt(6);
+      for (int s = 0; s < steps; s++)
+      {
+        float t = s/(float) steps;
+        TracePoint p = new TracePoint(x+t*(nextX-x)+10*(float) random.nextGaussian(), y+t*(nextY-y)+10*(float) random.nextGaussian());
+        p.addViaKey('a'+random.nextInt(26), 0.5f*random.nextFloat(), trace.size());
+        p.keyDistances[random.nextInt(27)] = random.nextFloat();
+        trace.add(p);
+      }
+      x = nextX;
+      y = nextY;
+    }
+    trace.add(new TracePoint(x, y));
+    return trace;
+  }
+
+  private static void simplifyOriginal(ArrayList<TracePoint> trace)
+  {
+    for (int first = 0; first < trace.size()-1; first++)
+    {
+      TracePoint p = trace.get(first);
+      float scale = 1.0f/(SPACING*SPACING);
+      int last;
+      for (last = first+1; last < trace.size() && scale*p.distance2(trace.get(last)) < 0.25f; last++)
+        ;
+      if (last > first+1)
+      {
+        float sumx = p.x;
+        float sumy = p.y;
+        for (int i = first+1; i < last; i++)
+        {
+          TracePoint p2 = trace.get(i);
+          p.mergePoint(p2);
+          sumx += p2.x;
+          sumy += p2.y;
+        }
+        p.x = sumx/(last-first);
+        p.y = sumy/(last-first);
+        for (int i = last-1; i > first; i--)
+          trace.remove(i);
+      }
+    }
+    if (trace.size() == 1)
+      return;
+    for (int i = 1; i < trace.size()-1; i++)
+    {
+      float dot = TraceSimplifier.getTurnCosine(trace.get(i-1), trace.get(i), trace.get(i+1));
+      if (dot > 0.95f && trace.size() > 10)
+        trace.remove(i--);
+      else
+        trace.get(i).weight = 0.75f-0.25f*dot;
+    }
+  }
+}
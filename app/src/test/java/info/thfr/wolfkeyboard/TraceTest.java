@@ -0,0 +1,109 @@
+package info.thfr.wolfkeyboard;
+
+/**
+ * Copyright 2019         Thomas Frohwein <11335318+rfht@users.noreply.github.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import org.junit.Test;
+
+import java.util.*;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks that a Trace holds the same information as the points it was created from.
+ */
+public class TraceTest
+{
+  @Test
+  public void traceMatchesPoints()
+  {
+    Random random = new Random(1);
+    TracePoint points[] = createPoints(random, 40);
+    Trace trace = new Trace(points);
+    assertEquals(points.length, trace.size());
+    for (int i = 0; i < points.length; i++)
+    {
+      TracePoint point = points[i];
+      assertEquals(point.x, trace.getX(i), 0.0f);
+      assertEquals(point.y, trace.getY(i), 0.0f);
+      assertEquals(point.weight, trace.getWeight(i), 0.0f);
+      for (int c = 'a'; c <= 'z'; c++)
+        assertEquals(point.getKeyDistance(c), trace.getKeyDistance(i, c), 0.0f);
+      assertEquals(point.getKeyDistance('\''), trace.getKeyDistance(i, '\''), 0.0f);
+
+      // The via keys should be in the order a finalized point has them in.
+
+      Collections.sort(point.viaKeyList);
+      point.finalizeViaKeys();
+      assertEquals(point.viaKeys.length, trace.getNumViaKeys(i));
+      for (int j = 0; j < point.viaKeys.length; j++)
+      {
+        assertEquals(point.viaKeys[j].key, trace.getViaKey(i, j));
+        assertEquals(point.viaKeys[j].nearestDistance, trace.getViaKeyDistance(i, j), 0.0f);
+      }
+    }
+  }
+
+  @Test
+  public void reusedTraceMatchesNewTrace()
+  {
+    Random random = new Random(2);
+    Trace reused = new Trace(2);
+    for (int t = 0; t < 20; t++)
+    {
+      TracePoint points[] = createPoints(random, 1+random.nextInt(30));
+      reused.clear();
+      for (TracePoint point : points)
+        reused.addPoint(point);
+      Trace fresh = new Trace(points);
+      assertTrue(reused.startsWith(fresh));
+      assertTrue(fresh.startsWith(reused));
+    }
+  }
+
+  @Test
+  public void startsWithComparesEveryPoint()
+  {
+    TracePoint points[] = createPoints(new Random(3), 10);
+    Trace trace = new Trace(points);
+    Trace start = new Trace(Arrays.copyOf(points, 6));
+    assertTrue(trace.startsWith(start));
+    assertFalse(start.startsWith(trace));
+    points[4].addViaKey('q', 0.25f, 1000);
+    assertFalse(trace.startsWith(new Trace(Arrays.copyOf(points, 6))));
+    points[2].weight = 0.3f;
+    assertFalse(trace.startsWith(new Trace(Arrays.copyOf(points, 3))));
+    assertTrue(trace.startsWith(new Trace(Arrays.copyOf(points, 2))));
+  }
+
+  private static TracePoint[] createPoints(Random random, int length)
+  {
+    TracePoint points[] = new TracePoint[length];
+    for (int i = 0; i < length; i++)
+    {
+      TracePoint point = new TracePoint(1000*random.nextFloat(), 500*random.nextFloat());
+      point.weight = 0.5f+0.5f*random.nextFloat();
+      for (int j = 0; j < 27; j++)
+        point.keyDistances[j] = 3*random.nextFloat();
+      int numKeys = random.nextInt(8);
+      for (int j = 0; j < numKeys; j++)
+        point.addViaKey(random.nextInt(10) == 0 ? '\'' : 'a'+random.nextInt(26), 0.5f*random.nextFloat(), random.nextInt(100));
+      points[i] = point;
+    }
+    return points;
+  }
+}
@@ -0,0 +1,42 @@
+package info.thfr.wolfkeyboard;
+
+/**
+ * Copyright 2019         Thomas Frohwein <11335318+rfht@users.noreply.github.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks that words with no traceable letters, such as a lone period, are left out of the user words.  Their
+ * traces are empty, so they could never be matched or decoded.
+ */
+public class UserWordsTest
+{
+  @Test
+  public void punctuationIsLeftOut()
+  {
+    UserWords words = UserWords.EMPTY.withWord("dog", 250).withWord(".", 250).withWord("", 250).withWord("cat", 200);
+    assertEquals(2, words.size());
+    assertEquals("cat", new String(words.words[0]));
+    assertEquals("dog", new String(words.words[1]));
+    assertEquals(200, words.frequency[0]);
+    for (int i = 0; i < words.size(); i++)
+      assertTrue(words.traces[i].length > 0);
+    assertEquals(2, words.keyStart[27]);
+  }
+}
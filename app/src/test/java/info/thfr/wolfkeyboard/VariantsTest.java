@@ -0,0 +1,51 @@
+package info.thfr.wolfkeyboard;
+
+/**
+ * Copyright 2019         Thomas Frohwein <11335318+rfht@users.noreply.github.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import org.junit.Test;
+
+import java.util.*;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks that when several words share a trace, each of them is returned as a guess for it, ranked by its own
+ * frequency, even though the trace is only scored once.
+ */
+public class VariantsTest
+{
+  private static final String WORDS[] = {"may", "May", "MAY", "resume", "résumé", "rest", "mat", "cat", "dog", "road", "ream"};
+  private static final int FREQUENCIES[] = {220, 120, 10, 100, 150, 200, 180, 190, 170, 160, 90};
+
+  @Test
+  public void variantsAreRankedByFrequency()
+  {
+    Dictionary dictionary = CompiledDictionaries.create(WORDS, FREQUENCIES);
+    assertGuesses(dictionary, "may", "may", "May", "MAY");
+    assertGuesses(dictionary, "resume", "résumé", "resume");
+  }
+
+  private static void assertGuesses(Dictionary dictionary, String trace, String... expected)
+  {
+    String guesses[] = dictionary.guessWord(CompiledDictionaries.createTrace(trace), KeyboardView.ModifierMode.UP, 5);
+    for (int i = 0; i < expected.length; i++)
+      assertEquals(Arrays.toString(guesses), expected[i], guesses[i]);
+    for (int i = expected.length; i < guesses.length; i++)
+      assertFalse(Arrays.toString(guesses), Arrays.asList(expected).contains(guesses[i]));
+  }
+}
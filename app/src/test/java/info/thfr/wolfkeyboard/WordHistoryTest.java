@@ -0,0 +1,190 @@
+package info.thfr.wolfkeyboard;
+
+/**
+ * Copyright 2019         Thomas Frohwein <11335318+rfht@users.noreply.github.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import org.junit.Test;
+
+import java.io.*;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks that WordHistory counts words, and that the counts are the same after saving and loading them, whether
+ * the log was appended to or rewritten, and even if writing it failed at first.
+ */
+public class WordHistoryTest
+{
+  @Test
+  public void countsSurviveReloading() throws IOException
+  {
+    File file = File.createTempFile("history", ".log");
+    file.delete();
+    try
+    {
+      WordHistory history = WordHistory.load(file, null);
+      history.addWord("The");
+      history.addWord("the");
+      history.addWord("cat");
+      assertEquals(2, getCount(history, "THE"));
+      assertEquals(1, getCount(history, "cat"));
+      assertEquals(0, getCount(history, "dog"));
+      history.flush();
+      history.addWord("cat");
+      history.flush();
+      assertEquals(4*12, file.length());
+
+      // A record that was only partly written is ignored.
+
+      FileOutputStream out = new FileOutputStream(file, true);
+      out.write(new byte[5]);
+      out.close();
+      WordHistory loaded = WordHistory.load(file, null);
+      assertEquals(2, getCount(loaded, "the"));
+      assertEquals(2, getCount(loaded, "cat"));
+      assertEquals(0, loaded.getBoost("dog".toCharArray(), 3));
+      assertEquals(2*WordHistory.BOOST_PER_DOUBLING, loaded.getBoost("cat".toCharArray(), 3));
+    }
+    finally
+    {
+      file.delete();
+    }
+  }
+
+  @Test
+  public void partlyWrittenRecordsAreCutOff() throws IOException
+  {
+    File file = File.createTempFile("history", ".log");
+    file.delete();
+    try
+    {
+      WordHistory history = WordHistory.load(file, null);
+      history.addWord("cat");
+      history.flush();
+
+      // A flush that failed after writing some of its records is retried, so they must not be counted twice.
+
+      byte record[] = new byte[12];
+      FileInputStream in = new FileInputStream(file);
+      assertEquals(12, in.read(record));
+      in.close();
+      FileOutputStream out = new FileOutputStream(file, true);
+      out.write(record);
+      out.write(new byte[5]);
+      out.close();
+      history.addWord("dog");
+      history.flush();
+      assertEquals(2*12, file.length());
+
+      // Records appended after a partly written one must start at a record boundary, or they would be read as
+      // garbage.
+
+      out = new FileOutputStream(file, true);
+      out.write(record, 0, 7);
+      out.close();
+      WordHistory loaded = WordHistory.load(file, null);
+      loaded.addWord("cat");
+      loaded.flush();
+      assertEquals(3*12, file.length());
+      loaded = WordHistory.load(file, null);
+      assertEquals(2, getCount(loaded, "cat"));
+      assertEquals(1, getCount(loaded, "dog"));
+    }
+    finally
+    {
+      file.delete();
+    }
+  }
+
+  @Test
+  public void compactingKeepsCounts() throws IOException
+  {
+    File file = File.createTempFile("history", ".log");
+    file.delete();
+    try
+    {
+      WordHistory history = WordHistory.load(file, null);
+      for (int i = 0; i < 3000; i++)
+        history.addWord("word"+(i%100));
+      history.flush();
+
+      // The log is rewritten with one record per word instead of one per use.
+
+      assertEquals(100*12, file.length());
+      assertFalse(new File(file.getPath()+".tmp").exists());
+      WordHistory loaded = WordHistory.load(file, null);
+      for (int i = 0; i < 100; i++)
+        assertEquals(30, getCount(loaded, "word"+i));
+      assertEquals(5*WordHistory.BOOST_PER_DOUBLING, loaded.getBoost("word7".toCharArray(), 5));
+    }
+    finally
+    {
+      file.delete();
+    }
+  }
+
+  @Test
+  public void failedWritesAreRetried() throws IOException
+  {
+    // Writing fails while the log's directory is a file instead.
+
+    File directory = File.createTempFile("history", "");
+    File file = new File(directory, "history.log");
+    try
+    {
+      WordHistory history = WordHistory.load(file, null);
+      history.addWord("cat");
+      history.flush();
+      assertFalse(file.exists());
+      assertTrue(directory.delete());
+      history.flush();
+      assertEquals(12, file.length());
+
+      // The same goes for rewriting the log.
+
+      for (int i = 0; i < 3000; i++)
+        history.addWord("word"+(i%100));
+      assertTrue(file.delete());
+      assertTrue(directory.delete());
+      assertTrue(directory.createNewFile());
+      history.flush();
+      assertEquals(30, getCount(history, "word5"));
+      assertTrue(directory.delete());
+      history.flush();
+      assertEquals(101*12, file.length());
+      WordHistory loaded = WordHistory.load(file, null);
+      assertEquals(1, getCount(loaded, "cat"));
+      for (int i = 0; i < 100; i++)
+        assertEquals(30, getCount(loaded, "word"+i));
+
+      // Nothing is left to write.
+
+      history.flush();
+      assertEquals(101*12, file.length());
+    }
+    finally
+    {
+      file.delete();
+      directory.delete();
+    }
+  }
+
+  private static int getCount(WordHistory history, String word)
+  {
+    return history.getCount(word.toCharArray(), word.length());
+  }
+}